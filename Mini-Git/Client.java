@@ -1,24 +1,86 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 
 // A program to work with Mini-Git. Manages the state of repositories and allows for all
 // operations defined in Mini-Git.
+//
+// Run with '--batch [file]' to execute a script of operations instead, read from the file
+// or from standard input if no file (or '-') is given. Each line of the script holds one
+// operation, with the same arguments the interactive prompts ask for:
+//      create <repo>
+//      head <repo>
+//      history <repo> <n>
+//      commit <repo> <message...>
+//      drop <repo> <id>
+//      synchronize <repo> <other repo>
+//      quit
+// Blank lines and lines starting with '#' are skipped. Nothing is echoed: only the
+// output of head and history goes to standard output, errors go to standard error, and
+// per-operation counts and timings are reported on standard error at the end.
+//
+// Run with '--store <directory> [max loaded]' before any other option to keep the
+// repositories in that directory, holding at most 'max loaded' of them in memory at once
+// (10000 by default). They are saved there on quit and found again on the next run.
 public class Client {
     private static List<String> ops = new ArrayList<>();
 
-    public static void main(String[] args) {
+    // The most repositories listed before each prompt; beyond this only the count is shown
+    private static final int LIST_LIMIT = 20;
+
+    public static void main(String[] args) throws IOException {
         Collections.addAll(ops, "create", "head", "history", "commit", "drop",
                            "synchronize", "quit");
+        int next = 0;
+        RepositoryRegistry repos;
+        if (args.length > 1 && args[0].equals("--store")) {
+            int maxLoaded = 10000;
+            next = 2;
+            if (args.length > 2 && !args[2].startsWith("--")) {
+                maxLoaded = Integer.parseInt(args[2]);
+                next = 3;
+            }
+            repos = new RepositoryRegistry(Paths.get(args[1]), maxLoaded);
+        } else {
+            repos = new RepositoryRegistry();
+        }
+        try (repos) {
+            if (args.length > next && args[next].equals("--batch")) {
+                String script = args.length > next + 1 ? args[next + 1] : "-";
+                BufferedReader in = script.equals("-")
+                        ? new BufferedReader(new InputStreamReader(System.in,
+                                             StandardCharsets.UTF_8), 1 << 16)
+                        : Files.newBufferedReader(Paths.get(script), StandardCharsets.UTF_8);
+                try (in) {
+                    runBatch(in, repos);
+                }
+            } else {
+                runInteractive(repos);
+            }
+        }
+    }
+
+    // Prompts for operations on the console until the user quits.
+    private static void runInteractive(RepositoryRegistry repos) throws IOException {
         Scanner console = new Scanner(System.in);
-        Map<String, Repository> repos = new HashMap<>();
         String op = "";
         String name = "";
 
         intro();
 
         while (!op.equalsIgnoreCase("quit")) {
-            System.out.println("Available repositories: ");
-            for (Repository repo : repos.values()) {
-                System.out.println("\t" + repo);
+            if (repos.size() > LIST_LIMIT) {
+                System.out.println("Available repositories: " + repos.size());
+            } else {
+                // Only the names, so printing the menu never reads evicted repositories
+                // back or holds them in memory
+                System.out.println("Available repositories: ");
+                List<String> names = repos.names();
+                Collections.sort(names);
+                for (String repoName : names) {
+                    System.out.println("\t" + repoName);
+                }
             }
             System.out.println("Operations: " + ops);
             System.out.print("Enter operation and repository: ");
@@ -27,7 +89,7 @@ public class Client {
             name = input.length > 1 ? input[1] : "";
             while (!ops.contains(op) || (!op.equalsIgnoreCase("create") &&
                     !op.equalsIgnoreCase("quit") &&
-                    !repos.containsKey(name))) {
+                    !repos.contains(name))) {
                 System.out.println("  **ERROR**: Operation or repository not recognized.");
                 System.out.print("Enter operation and repository: ");
                 input = console.nextLine().split("\\s+");
@@ -35,49 +97,181 @@ public class Client {
                 name = input.length > 1 ? input[1] : "";
             }
 
-            Repository currRepo = repos.get(name);
             op = op.toLowerCase();
             if (op.equalsIgnoreCase("create")) {
-                if (currRepo != null) {
+                if (!repos.create(name)) {
                     System.out.println("  **ERROR**: Repository with that name already exists.");
                 } else {
-                    Repository newRepo = new Repository(name);
-                    repos.put(name, newRepo);
-                    System.out.println("  New repository created: " + newRepo);
+                    try (RepositoryRegistry.Lease lease = repos.acquire(name)) {
+                        System.out.println("  New repository created: "
+                                           + lease.getRepository());
+                    }
                 }
-            } else if (op.equalsIgnoreCase("head")) {
-                System.out.println(currRepo.getRepoHead());
-            } else if (op.equalsIgnoreCase("history")) {
-                System.out.print("How many commits back? ");
-                int nHist = console.nextInt();
-                console.nextLine();
-                System.out.println(currRepo.getHistory(nHist));
-            } else if (op.equalsIgnoreCase("commit")) {
-                System.out.print("Enter commit message: ");
-                String message = console.nextLine();
-                System.out.println("  New commit: " + currRepo.commit(message));
-            } else if (op.equalsIgnoreCase("drop")) {
-                System.out.print("Enter ID to drop: ");
-                String idDrop = console.nextLine();
-                if (currRepo.drop(idDrop)) {
-                    System.out.println("  Successfully dropped " + idDrop);
-                } else {
-                    System.out.println("  No commit dropped!");
+            } else if (!op.equalsIgnoreCase("quit")) {
+                try (RepositoryRegistry.Lease lease = repos.acquire(name)) {
+                    runOperation(console, repos, op, name, lease.getRepository());
                 }
-            } else if (op.equalsIgnoreCase("synchronize")) {
-                System.out.print("Which repository would you like to " +
-                        "synchronize into the given one? ");
-                String repo = console.nextLine();
-                if (repo.equals(name)) {
-                    System.out.println("Cannot synchronize the same repositories!");
-                } else if (!repos.containsKey(repo)) {
-                    System.out.println("Repository does not exist!");
+            }
+            System.out.println();
+        }
+    }
+
+    // Prompts for the rest of a head, history, commit, drop or synchronize operation on
+    // the given repository and runs it.
+    private static void runOperation(Scanner console, RepositoryRegistry repos, String op,
+                                     String name, Repository currRepo) throws IOException {
+        if (op.equalsIgnoreCase("head")) {
+            System.out.println(currRepo.getRepoHead());
+        } else if (op.equalsIgnoreCase("history")) {
+            System.out.print("How many commits back? ");
+            int nHist = console.nextInt();
+            console.nextLine();
+            System.out.println(currRepo.getHistory(nHist));
+        } else if (op.equalsIgnoreCase("commit")) {
+            System.out.print("Enter commit message: ");
+            String message = console.nextLine();
+            System.out.println("  New commit: " + currRepo.commit(message));
+        } else if (op.equalsIgnoreCase("drop")) {
+            System.out.print("Enter ID to drop: ");
+            String idDrop = console.nextLine();
+            if (currRepo.drop(idDrop)) {
+                System.out.println("  Successfully dropped " + idDrop);
+            } else {
+                System.out.println("  No commit dropped!");
+            }
+        } else if (op.equalsIgnoreCase("synchronize")) {
+            System.out.print("Which repository would you like to " +
+                    "synchronize into the given one? ");
+            String repo = console.nextLine();
+            if (repo.equals(name)) {
+                System.out.println("Cannot synchronize the same repositories!");
+            } else {
+                try (RepositoryRegistry.Lease other = repos.acquire(repo)) {
+                    if (other == null) {
+                        System.out.println("Repository does not exist!");
+                    } else {
+                        currRepo.synchronize(other.getRepository());
+                    }
+                }
+            }
+        }
+    }
+
+    // Executes every operation in the given script on the repositories of the given
+    // registry without prompting or echoing, then reports how many of each operation ran,
+    // how long they took, and the total throughput.
+    public static void runBatch(BufferedReader in, RepositoryRegistry repos)
+            throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16));
+        long[] counts = new long[ops.size()];
+        long[] nanos = new long[ops.size()];
+        long errors = 0;
+        int lineNumber = 0;
+        long start = System.nanoTime();
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            // Split off the operation and repository name; the rest is the argument, which
+            // for a commit message may contain spaces
+            int opEnd = indexOfSpace(line, 0);
+            String op = line.substring(0, opEnd).toLowerCase();
+            int nameStart = skipSpaces(line, opEnd);
+            int nameEnd = indexOfSpace(line, nameStart);
+            String name = line.substring(nameStart, nameEnd);
+            String arg = line.substring(skipSpaces(line, nameEnd));
+
+            int index = ops.indexOf(op);
+            if (index < 0) {
+                System.err.println("line " + lineNumber + ": unknown operation " + op);
+                errors++;
+                continue;
+            }
+            if (op.equals("quit")) {
+                break;
+            }
+            if (!op.equals("create") && !repos.contains(name)) {
+                System.err.println("line " + lineNumber + ": no repository " + name);
+                errors++;
+                continue;
+            }
+
+            // Leasing is timed with the operation, since it may read the repository back
+            // from disk
+            long opStart = System.nanoTime();
+            try {
+                if (op.equals("create")) {
+                    if (!repos.create(name)) {
+                        throw new IllegalArgumentException("repository already exists");
+                    }
                 } else {
-                    currRepo.synchronize(repos.get(repo));
+                    try (RepositoryRegistry.Lease lease = repos.acquire(name)) {
+                        runBatchOperation(repos, op, name, arg, lease.getRepository(), out);
+                    }
                 }
+            } catch (IllegalArgumentException e) {
+                System.err.println("line " + lineNumber + ": " + op + " failed: "
+                                   + e.getMessage());
+                errors++;
             }
-            System.out.println();
+            nanos[index] += System.nanoTime() - opStart;
+            counts[index]++;
+        }
+        out.flush();
+
+        long elapsed = System.nanoTime() - start;
+        long total = 0;
+        System.err.printf("%-12s %12s %12s %12s%n", "operation", "count", "total ms", "avg ns");
+        for (int i = 0; i < ops.size(); i++) {
+            if (counts[i] > 0) {
+                System.err.printf("%-12s %12d %12.1f %12d%n", ops.get(i), counts[i],
+                                  nanos[i] / 1e6, nanos[i] / counts[i]);
+                total += counts[i];
+            }
+        }
+        System.err.printf("%d operations (%d errors) in %.1f ms: %.0f ops/s%n", total, errors,
+                          elapsed / 1e6, total / (elapsed / 1e9));
+    }
+
+    // Runs a head, history, commit, drop or synchronize operation from a batch script on
+    // the given repository.
+    private static void runBatchOperation(RepositoryRegistry repos, String op, String name,
+                                          String arg, Repository currRepo, PrintWriter out)
+            throws IOException {
+        if (op.equals("head")) {
+            out.println(currRepo.getRepoHead());
+        } else if (op.equals("history")) {
+            out.println(currRepo.getHistory(Integer.parseInt(arg)));
+        } else if (op.equals("commit")) {
+            currRepo.commit(arg);
+        } else if (op.equals("drop")) {
+            currRepo.drop(arg);
+        } else if (op.equals("synchronize")) {
+            try (RepositoryRegistry.Lease other = arg.equals(name) ? null : repos.acquire(arg)) {
+                if (other == null) {
+                    throw new IllegalArgumentException("cannot synchronize with " + arg);
+                }
+                currRepo.synchronize(other.getRepository());
+            }
+        }
+    }
+
+    // Returns the index of the first space at or after 'from', or the line's length.
+    private static int indexOfSpace(String line, int from) {
+        int index = line.indexOf(' ', from);
+        return index < 0 ? line.length() : index;
+    }
+
+    // Returns the index of the first non-space character at or after 'from'.
+    private static int skipSpaces(String line, int from) {
+        while (from < line.length() && line.charAt(from) == ' ') {
+            from++;
         }
+        return from;
     }
 
     // Prints out an introduction to the Mini-Git test client.
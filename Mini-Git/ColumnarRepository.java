@@ -0,0 +1,507 @@
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A repository with the core operations of CommitRepository that stores its commits in
+ * parallel primitive arrays instead of one object per commit. Each commit is a slot
+ * holding its timestamp, numeric ID, the slot of the previous commit, and the position
+ * of its message in a single shared byte array of UTF-8 text. The extras of Repository,
+ * such as concurrency, durable logs, indexes, branches and snapshots, are not supported.
+ *
+ * Since there are no commit objects to hand out, the history iterators, streams and
+ * pages build a Repository.Commit for each commit as it is visited. These are copies:
+ * their past fields are null, and changing the repository does not change them. An
+ * iterator or stream must not be used after the repository changes, since drops and
+ * synchronize may move commits to other slots.
+ *
+ * New commits are appended, so the history is normally laid out oldest to newest and
+ * walking it reads the arrays sequentially. Dropped commits leave dead slots behind; once
+ * they outnumber the live ones, the arrays are compacted back into history order.
+ * Messages share one byte array, so their UTF-8 text may total at most about 2 GB.
+ * Commit IDs are drawn from the same counter as Repository.Commit.
+ */
+public class ColumnarRepository implements CommitRepository<ColumnarRepository> {
+    private static final int NONE = -1;  // The slot index that stands for "no commit"
+    private static final int MAX_ARENA = Integer.MAX_VALUE - 8;  // The largest safe array
+
+    private final String name;  // The name of the repository
+
+    private long[] timeStamps;
+    private int[] ids;
+    private int[] pasts;               // The slot of each commit's previous commit, or NONE
+    private int[] messageStarts;       // The offset of each message in the arena
+    private int[] messageLengths;      // The UTF-8 length of each message, or -1 for null
+    private byte[] arena;              // Every message, one after another
+
+    private int slots;                 // The number of slots in use, live or dead
+    private int arenaSize;             // The number of bytes of the arena in use
+    private int head = NONE;           // The slot of the head commit
+    private int tail = NONE;           // The slot of the oldest live commit
+    private int size;                  // The number of live commits
+    private long totalMessageBytes;    // The UTF-8 size of all live commit messages
+
+    /**
+     * Constructs a new, empty repository with the given name.
+     * @param name The name of the repository.
+     * @throws IllegalArgumentException If the name is null or empty.
+     */
+    public ColumnarRepository(String name) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        this.name = name;
+        allocate(16, 256);
+    }
+
+    /**
+     * Creates a new commit with the given message and adds it to the repository as the
+     * new head.
+     * @param message The commit message.
+     * @return The ID of the newly created commit.
+     * @throws IllegalStateException If the messages would no longer fit in one byte array.
+     */
+    public String commit(String message) {
+        int id = Repository.Commit.allocateId();
+        append(id, System.currentTimeMillis(), message, head);
+        head = slots - 1;
+        size++;
+        return "" + id;
+    }
+
+    /**
+     * Retrieves the ID of the current head commit of the repository.
+     * @return The ID of the head commit, or null if the repository is empty.
+     */
+    public String getRepoHead() {
+        return (head != NONE) ? "" + ids[head] : null;
+    }
+
+    /**
+     * Returns the total number of commits in the repository. Runs in constant time.
+     * @return The total number of commits.
+     */
+    public int getRepoSize() {
+        return size;
+    }
+
+    /**
+     * Returns the timestamp of the newest commit in the repository. Runs in constant time.
+     * @return The newest timestamp in milliseconds, or -1 if the repository is empty.
+     */
+    public long getNewestTimeStamp() {
+        return (head != NONE) ? timeStamps[head] : -1;
+    }
+
+    /**
+     * Returns the timestamp of the oldest commit in the repository. Runs in constant time.
+     * @return The oldest timestamp in milliseconds, or -1 if the repository is empty.
+     */
+    public long getOldestTimeStamp() {
+        return (tail != NONE) ? timeStamps[tail] : -1;
+    }
+
+    /**
+     * Returns the combined size of every commit message in the repository, measured in
+     * UTF-8 bytes. Runs in constant time.
+     * @return The total number of message bytes.
+     */
+    public long getTotalMessageBytes() {
+        return totalMessageBytes;
+    }
+
+    /**
+     * Provides a string representation of the repository, showing its name and current
+     * head commit.
+     * @return A string detailing the repository's name and head commit.
+     */
+    @Override
+    public String toString() {
+        return name + (head == NONE ? " - No commits" : " - Current head: " + format(head));
+    }
+
+    /**
+     * Checks if a commit with the specified ID exists within the repository.
+     * @param targetId The ID of the commit to search for.
+     * @return true if the commit exists, false otherwise.
+     */
+    public boolean contains(String targetId) {
+        return find(targetId) != NONE;
+    }
+
+    /**
+     * Removes a commit with the specified ID from the repository, if it exists.
+     * @param targetId The ID of the commit to remove.
+     * @return true if the commit was removed successfully, false if no such commit exists.
+     */
+    public boolean drop(String targetId) {
+        int id = parseId(targetId);
+        if (id == NONE) {
+            return false;
+        }
+        int previous = NONE;
+        int slot = head;
+        while (slot != NONE && ids[slot] != id) {
+            previous = slot;
+            slot = pasts[slot];
+        }
+        if (slot == NONE) {
+            return false;
+        }
+
+        if (previous == NONE) {
+            head = pasts[slot];
+        } else {
+            pasts[previous] = pasts[slot];
+        }
+        if (slot == tail) {
+            tail = previous;
+        }
+        size--;
+        totalMessageBytes -= Math.max(messageLengths[slot], 0);
+        if (slots - size > size) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves a history of up to 'n' commits from the head, one per line, in the same
+     * form as Repository.getHistory.
+     * @param n The number of commits to retrieve.
+     * @return The most recent 'n' commits, or fewer if the repository is smaller.
+     * @throws IllegalArgumentException If 'n' is less than or equal to zero.
+     */
+    public String getHistory(int n) {
+        if (n <= 0) throw new IllegalArgumentException();
+        StringBuilder history = new StringBuilder();
+        try {
+            writeHistory(n, history);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // StringBuilder never throws
+        }
+        return history.toString().trim();
+    }
+
+    /**
+     * Writes up to 'n' of the most recent commits to the given output, newest first, one
+     * commit per line in the same form as getHistory.
+     * @param n The number of commits to write.
+     * @param out The destination for the history.
+     * @throws IOException If writing to 'out' fails.
+     * @throws IllegalArgumentException If 'n' is less than or equal to zero.
+     */
+    public void writeHistory(int n, Appendable out) throws IOException {
+        if (n <= 0) throw new IllegalArgumentException();
+        for (int slot = head; slot != NONE && n > 0; slot = pasts[slot], n--) {
+            if (slot != head) {
+                out.append('\n');
+            }
+            out.append(format(slot));
+        }
+    }
+
+    /**
+     * Returns an iterator over every commit in the repository, newest first. Each commit
+     * is built as the iterator reaches it.
+     * @return An iterator starting at the head commit.
+     */
+    public Iterator<Repository.Commit> historyIterator() {
+        return new SlotIterator(head);
+    }
+
+    /**
+     * Returns an iterator over the commits starting at the commit with the given ID and
+     * continuing toward the oldest commit.
+     * @param fromId The ID of the first commit to return.
+     * @return An iterator starting at the given commit.
+     * @throws IllegalArgumentException If no commit with the given ID exists.
+     */
+    public Iterator<Repository.Commit> historyIterator(String fromId) {
+        return new SlotIterator(findOrThrow(fromId));
+    }
+
+    /**
+     * Returns a lazily evaluated, sequential stream of every commit, newest first.
+     * @return A stream over the repository's history.
+     */
+    public Stream<Repository.Commit> streamHistory() {
+        return StreamSupport.stream(Spliterators.spliterator(new SlotIterator(head), size,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Returns one page of history. Pass a null token to start at the head commit, and the
+     * returned page's next token to continue where the previous page stopped. As with
+     * Repository, a token is found again by searching for its commit, so use
+     * historyIterator or streamHistory to read a long history from start to end.
+     * @param pageToken The token of a previous page, or null for the first page.
+     * @param pageSize The maximum number of commits in the page.
+     * @return The requested page of commits.
+     * @throws IllegalArgumentException If 'pageSize' is less than or equal to zero, or the
+     *                                  token refers to a commit that no longer exists.
+     */
+    public Repository.HistoryPage getHistoryPage(String pageToken, int pageSize) {
+        if (pageSize <= 0) throw new IllegalArgumentException();
+        int slot = (pageToken == null) ? head : findOrThrow(pageToken);
+        List<Repository.Commit> commits = new ArrayList<>(Math.min(pageSize, size));
+        while (slot != NONE && commits.size() < pageSize) {
+            commits.add(toCommit(slot));
+            slot = pasts[slot];
+        }
+        return new Repository.HistoryPage(commits, (slot == NONE) ? null : "" + ids[slot]);
+    }
+
+    /**
+     * Merges another repository's commits into this repository, sorting by timestamp,
+     * and clears the other repository. When timestamps tie, this repository's commits
+     * come first. The merged history is written into fresh arrays in history order, which
+     * also compacts away any dead slots.
+     * @param other The repository to merge into this one.
+     * @throws IllegalStateException If the merged messages would not fit in one byte array.
+     */
+    public void synchronize(ColumnarRepository other) {
+        if (other == this || other.head == NONE) {
+            return;
+        }
+        ColumnarRepository merged = new ColumnarRepository(name);
+        merged.allocate(size + other.size,
+                arenaBytes(totalMessageBytes + other.totalMessageBytes));
+
+        // Merge newest first into a temporary order, then append oldest first
+        int[] fromThis = new int[size + other.size];
+        boolean[] isThis = new boolean[fromThis.length];
+        int count = 0;
+        int current = head;
+        int otherCurrent = other.head;
+        while (current != NONE || otherCurrent != NONE) {
+            if (otherCurrent == NONE || (current != NONE
+                    && timeStamps[current] >= other.timeStamps[otherCurrent])) {
+                fromThis[count] = current;
+                isThis[count++] = true;
+                current = pasts[current];
+            } else {
+                fromThis[count] = otherCurrent;
+                isThis[count++] = false;
+                otherCurrent = other.pasts[otherCurrent];
+            }
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            ColumnarRepository source = isThis[i] ? this : other;
+            merged.copySlot(source, fromThis[i], merged.head);
+            merged.head = merged.slots - 1;
+        }
+
+        adopt(merged);
+        size = count;
+        totalMessageBytes += other.totalMessageBytes;
+        other.clear();
+    }
+
+    // Appends a slot holding the given commit and returns its index.
+    private int append(int id, long timeStamp, String message, int past) {
+        byte[] bytes = (message == null) ? null : message.getBytes(StandardCharsets.UTF_8);
+        int length = (bytes == null) ? 0 : bytes.length;
+        ensureCapacity(slots + 1, (long) arenaSize + length);
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, arena, arenaSize, length);
+        }
+        timeStamps[slots] = timeStamp;
+        ids[slots] = id;
+        pasts[slots] = past;
+        messageStarts[slots] = arenaSize;
+        messageLengths[slots] = (bytes == null) ? -1 : length;
+        arenaSize += length;
+        totalMessageBytes += length;
+        if (past == NONE) {
+            tail = slots;
+        }
+        return slots++;
+    }
+
+    // Appends a copy of a slot of 'source', pointing at 'past', without re-encoding its
+    // message. Leaves the message byte total to the caller.
+    private void copySlot(ColumnarRepository source, int slot, int past) {
+        int length = Math.max(source.messageLengths[slot], 0);
+        ensureCapacity(slots + 1, (long) arenaSize + length);
+        System.arraycopy(source.arena, source.messageStarts[slot], arena, arenaSize, length);
+        timeStamps[slots] = source.timeStamps[slot];
+        ids[slots] = source.ids[slot];
+        pasts[slots] = past;
+        messageStarts[slots] = arenaSize;
+        messageLengths[slots] = source.messageLengths[slot];
+        arenaSize += length;
+        if (past == NONE) {
+            tail = slots;
+        }
+        slots++;
+    }
+
+    // Rewrites the live commits into fresh arrays in history order, dropping dead slots
+    // and their message bytes.
+    private void compact() {
+        int[] order = new int[size];
+        int count = size;
+        for (int slot = head; slot != NONE; slot = pasts[slot]) {
+            order[--count] = slot;
+        }
+        ColumnarRepository compacted = new ColumnarRepository(name);
+        compacted.allocate(Math.max(size, 16), (int) Math.max(totalMessageBytes, 256));
+        for (int slot : order) {
+            compacted.copySlot(this, slot, compacted.head);
+            compacted.head = compacted.slots - 1;
+        }
+        adopt(compacted);
+    }
+
+    // Takes over the arrays, head and oldest slot of another repository.
+    private void adopt(ColumnarRepository other) {
+        timeStamps = other.timeStamps;
+        ids = other.ids;
+        pasts = other.pasts;
+        messageStarts = other.messageStarts;
+        messageLengths = other.messageLengths;
+        arena = other.arena;
+        slots = other.slots;
+        arenaSize = other.arenaSize;
+        head = other.head;
+        tail = other.tail;
+    }
+
+    // Empties this repository and releases its arrays.
+    private void clear() {
+        allocate(16, 256);
+        slots = 0;
+        arenaSize = 0;
+        head = NONE;
+        tail = NONE;
+        size = 0;
+        totalMessageBytes = 0;
+    }
+
+    // Returns the slot of the live commit with the given ID, or NONE.
+    private int find(String targetId) {
+        int id = parseId(targetId);
+        if (id == NONE) {
+            return NONE;
+        }
+        if (size == slots) {
+            // No dead slots, so a straight scan of the ID column is enough
+            for (int slot = slots - 1; slot >= 0; slot--) {
+                if (ids[slot] == id) {
+                    return slot;
+                }
+            }
+            return NONE;
+        }
+        for (int slot = head; slot != NONE; slot = pasts[slot]) {
+            if (ids[slot] == id) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    // Returns the slot of the live commit with the given ID.
+    // Throws an IllegalArgumentException if no such commit exists.
+    private int findOrThrow(String targetId) {
+        int slot = find(targetId);
+        if (slot == NONE) {
+            throw new IllegalArgumentException("No commit with ID " + targetId);
+        }
+        return slot;
+    }
+
+    // Returns the commit in the given slot in the form "[id] at [timestamp]: [message]".
+    private String format(int slot) {
+        return ids[slot] + " at " + Repository.TimeStampFormat.format(timeStamps[slot])
+                + ": " + message(slot);
+    }
+
+    // Returns the message of the commit in the given slot, or null if it has none.
+    private String message(int slot) {
+        int length = messageLengths[slot];
+        return (length < 0) ? null
+                : new String(arena, messageStarts[slot], length, StandardCharsets.UTF_8);
+    }
+
+    // Returns a copy of the commit in the given slot as a Repository.Commit.
+    private Repository.Commit toCommit(int slot) {
+        return Repository.detachedCommit("" + ids[slot], timeStamps[slot], message(slot));
+    }
+
+    // Replaces the arrays with empty ones of the given capacities.
+    private void allocate(int slotCapacity, int arenaCapacity) {
+        timeStamps = new long[slotCapacity];
+        ids = new int[slotCapacity];
+        pasts = new int[slotCapacity];
+        messageStarts = new int[slotCapacity];
+        messageLengths = new int[slotCapacity];
+        arena = new byte[arenaCapacity];
+    }
+
+    // Grows the arrays so they hold at least the given number of slots and arena bytes.
+    private void ensureCapacity(int slotCapacity, long arenaCapacity) {
+        if (slotCapacity > ids.length) {
+            int newLength = Math.max(slotCapacity, ids.length * 2);
+            timeStamps = Arrays.copyOf(timeStamps, newLength);
+            ids = Arrays.copyOf(ids, newLength);
+            pasts = Arrays.copyOf(pasts, newLength);
+            messageStarts = Arrays.copyOf(messageStarts, newLength);
+            messageLengths = Arrays.copyOf(messageLengths, newLength);
+        }
+        if (arenaCapacity > arena.length) {
+            int needed = arenaBytes(arenaCapacity);
+            long grown = Math.min(Math.max(needed, arena.length * 2L), MAX_ARENA);
+            arena = Arrays.copyOf(arena, (int) grown);
+        }
+    }
+
+    // Returns the given arena size as an int.
+    // Throws an IllegalStateException if no byte array can hold that many bytes.
+    private static int arenaBytes(long bytes) {
+        if (bytes > MAX_ARENA) {
+            throw new IllegalStateException("Commit messages cannot take more than "
+                    + MAX_ARENA + " bytes, but " + bytes + " are needed");
+        }
+        return (int) bytes;
+    }
+
+    // Walks the history from a slot toward the oldest commit, building each commit as it
+    // is reached.
+    private class SlotIterator implements Iterator<Repository.Commit> {
+        private int next;
+
+        SlotIterator(int start) {
+            this.next = start;
+        }
+
+        public boolean hasNext() {
+            return next != NONE;
+        }
+
+        public Repository.Commit next() {
+            if (next == NONE) throw new NoSuchElementException();
+            Repository.Commit commit = toCommit(next);
+            next = pasts[next];
+            return commit;
+        }
+    }
+
+    // Returns the numeric value of a commit ID, or NONE if it is not a valid ID.
+    private static int parseId(String id) {
+        if (id == null || id.isEmpty() || id.length() > 10) {
+            return NONE;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (id.charAt(i) < '0' || id.charAt(i) > '9') {
+                return NONE;
+            }
+        }
+        long value = Long.parseLong(id);
+        return (value <= Integer.MAX_VALUE) ? (int) value : NONE;
+    }
+}
@@ -0,0 +1,611 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, segmented on-disk log of the operations made on a repository.
+ * Every record carries a CRC32 checksum; on open, a torn or corrupted tail is detected
+ * and truncated away.
+ *
+ * Each append writes the whole operation to the segment file before it returns, so it
+ * survives the process crashing. It is on disk, and survives the machine crashing too,
+ * once awaitDurable or sync returns. awaitDurable is a group commit: writers on different
+ * threads that wait at the same time share one force of the file.
+ *
+ * Every operation ends with a summary of the history after it: its size, head, oldest
+ * timestamp and message bytes. On open, the newest segment is scanned and cut back to
+ * the last summary, so an operation torn by a crash is dropped whole. Older segments were
+ * sealed with a checksummed trailer holding the summary when the log rolled over to a new
+ * segment, so reopening costs the same no matter how many commits the log holds, and the
+ * summary is known without reading the records back. Only the summary is: rebuilding
+ * the history means replaying every segment from the oldest, through memory-mapped
+ * segments.
+ */
+public class CommitLog implements Closeable {
+    /** The size at which the log rolls over to a new segment by default. */
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+    // Record types
+    private static final byte COMMIT = 1;
+    private static final byte DROP = 2;
+    private static final byte IMPORT = 3;
+    private static final byte SYNCHRONIZE = 4;
+    private static final byte CLEAR = 5;
+    private static final byte SUMMARY = 6;
+
+    // Every record is [int payload length][int payload CRC32][payload]
+    private static final int HEADER_BYTES = 8;
+
+    // A summary is [int size][int head id][long head timestamp][long oldest timestamp]
+    // [long message bytes], with a head id of -1 for an empty history
+    private static final int SUMMARY_BYTES = 32;
+
+    // Sealed segments end with [long magic][int record count][int max id][summary]
+    // [int CRC32]
+    private static final long SEAL_MAGIC = 0x4D696E6947697453L;
+    private static final int SEAL_BYTES = 20 + SUMMARY_BYTES;
+
+    private final Path directory;
+    private final long segmentBytes;
+
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 << 10);
+    private ByteBuffer record = ByteBuffer.allocate(256);
+    private final CRC32 crc = new CRC32();
+
+    private final List<Path> segments = new ArrayList<>();
+    private FileChannel active;     // The segment currently being appended to
+    private long activeBytes;       // The size of the active segment, including buffered data
+    private int activeRecords;      // The number of records in the active segment
+    private int maxId = -1;         // The largest commit ID recorded in the log
+    private Summary summary = Summary.EMPTY; // The history after the last operation
+
+    private long written;           // The number of operations written to the log
+    private long durable;           // The number of those known to be forced to disk
+    private boolean forcing;        // true while a writer forces the file outside the lock
+
+    /**
+     * Opens, or creates, the log stored in the given directory using the default segment
+     * size.
+     * @param directory The directory holding the log's segments.
+     * @return The opened log.
+     * @throws IOException If the log cannot be read or a sealed segment is corrupt.
+     */
+    public static CommitLog open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens, or creates, the log stored in the given directory.
+     * @param directory The directory holding the log's segments.
+     * @param segmentBytes The size at which to roll over to a new segment.
+     * @return The opened log.
+     * @throws IOException If the log cannot be read or a sealed segment is corrupt.
+     * @throws IllegalArgumentException If 'segmentBytes' is not positive.
+     */
+    public static CommitLog open(Path directory, long segmentBytes) throws IOException {
+        if (segmentBytes <= 0) {
+            throw new IllegalArgumentException();
+        }
+        CommitLog log = new CommitLog(directory, segmentBytes);
+        log.recover();
+        return log;
+    }
+
+    private CommitLog(Path directory, long segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Returns the smallest commit ID that is not used by any commit in the log.
+     * @return The next free commit ID.
+     */
+    public synchronized int nextCommitId() {
+        return maxId + 1;
+    }
+
+    /**
+     * Returns the summary recorded by the last operation, which describes the history
+     * the log holds without reading it back.
+     * @return The summary of the logged history.
+     */
+    public synchronized Summary summary() {
+        return summary;
+    }
+
+    /**
+     * Records a new commit made on top of the repository's history.
+     * @param commit The commit that was made.
+     * @param after The history once the commit was made.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized void appendCommit(Repository.Commit commit, Summary after)
+            throws IOException {
+        startOperation();
+        startRecord(COMMIT);
+        putCommit(commit);
+        finishRecord();
+        finishOperation(after);
+    }
+
+    /**
+     * Records that the commits with the given IDs were dropped, all in one operation.
+     * @param ids The IDs of the dropped commits.
+     * @param after The history once the commits were dropped.
+     * @throws IOException If the records cannot be written.
+     */
+    public synchronized void appendDrops(Collection<String> ids, Summary after)
+            throws IOException {
+        startOperation();
+        for (String id : ids) {
+            startRecord(DROP);
+            record.putInt(Integer.parseInt(id));
+            finishRecord();
+        }
+        finishOperation(after);
+    }
+
+    /**
+     * Records that the given commits were merged into the repository by synchronize.
+     * @param imported The commits that were added to the repository.
+     * @param after The history once the commits were merged in.
+     * @throws IOException If the records cannot be written.
+     */
+    public synchronized void appendSynchronize(List<Repository.Commit> imported,
+            Summary after) throws IOException {
+        startOperation();
+        for (Repository.Commit commit : imported) {
+            startRecord(IMPORT);
+            putCommit(commit);
+            finishRecord();
+        }
+        startRecord(SYNCHRONIZE);
+        record.putInt(imported.size());
+        finishRecord();
+        finishOperation(after);
+    }
+
+    /**
+     * Records that every commit was removed from the repository.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized void appendClear() throws IOException {
+        startOperation();
+        startRecord(CLEAR);
+        finishRecord();
+        finishOperation(Summary.EMPTY);
+    }
+
+    /**
+     * Waits until every operation appended before the call is forced to disk. If another
+     * thread is already forcing the file, waits for it and forces again only if that did
+     * not cover every operation, so writers that wait together share one force.
+     * @throws IOException If the file cannot be forced.
+     */
+    public void awaitDurable() throws IOException {
+        FileChannel channel;
+        long target;
+        synchronized (this) {
+            target = written;
+            waitForForce(target);
+            if (durable >= target) {
+                return;
+            }
+            // Becomes the writer that forces everything written so far
+            forcing = true;
+            target = written;
+            channel = active;
+        }
+        boolean forced = false;
+        try {
+            channel.force(false);
+            forced = true;
+        } finally {
+            synchronized (this) {
+                forcing = false;
+                if (forced) {
+                    durable = Math.max(durable, target);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forces every record written so far to disk.
+     * @throws IOException If the records cannot be written.
+     */
+    public synchronized void sync() throws IOException {
+        flush();
+        active.force(false);
+        durable = written;
+    }
+
+    /**
+     * Syncs and closes the log.
+     * @throws IOException If the remaining records cannot be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (active.isOpen()) {
+            waitForForce(Long.MAX_VALUE);
+            sync();
+            active.close();
+        }
+    }
+
+    /**
+     * Reads every record in the log, oldest first, and passes it to the given replayer.
+     * Any records that are still buffered are written out first. The log is never
+     * compacted, so this takes time in proportion to every operation ever appended.
+     * @param replayer The receiver of the log's records.
+     * @throws IOException If a segment cannot be read.
+     */
+    public synchronized void replay(Replayer replayer) throws IOException {
+        flush();
+        for (int i = 0; i < segments.size(); i++) {
+            boolean sealed = i < segments.size() - 1;
+            try (FileChannel channel = FileChannel.open(segments.get(i),
+                    StandardOpenOption.READ)) {
+                long limit = channel.size() - (sealed ? SEAL_BYTES : 0);
+                if (limit <= 0) {
+                    continue;
+                }
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, limit);
+                while (map.remaining() >= HEADER_BYTES) {
+                    ByteBuffer payload = nextPayload(map);
+                    if (payload == null) {
+                        break;
+                    }
+                    replayRecord(payload, replayer);
+                }
+            }
+        }
+    }
+
+    /**
+     * The size, head and statistics of a repository's history after an operation.
+     */
+    public static class Summary {
+        /** The summary of an empty history. */
+        public static final Summary EMPTY = new Summary(0, null, -1, -1, 0);
+
+        /** The number of commits. */
+        public final int size;
+
+        /** The ID of the head commit, or null if there are no commits. */
+        public final String headId;
+
+        /** The timestamp of the head commit, or -1 if there are no commits. */
+        public final long headTimeStamp;
+
+        /** The timestamp of the oldest commit, or -1 if there are no commits. */
+        public final long oldestTimeStamp;
+
+        /** The combined UTF-8 size of every commit message. */
+        public final long totalMessageBytes;
+
+        /**
+         * Constructs a summary of a history.
+         * @param size The number of commits.
+         * @param headId The ID of the head commit, or null if there are no commits.
+         * @param headTimeStamp The timestamp of the head commit.
+         * @param oldestTimeStamp The timestamp of the oldest commit.
+         * @param totalMessageBytes The combined UTF-8 size of every commit message.
+         */
+        public Summary(int size, String headId, long headTimeStamp, long oldestTimeStamp,
+                long totalMessageBytes) {
+            this.size = size;
+            this.headId = headId;
+            this.headTimeStamp = headTimeStamp;
+            this.oldestTimeStamp = oldestTimeStamp;
+            this.totalMessageBytes = totalMessageBytes;
+        }
+    }
+
+    /**
+     * Receives the records of a log during replay, in the order they were written.
+     */
+    public interface Replayer {
+        /** Called for a commit made on top of the repository's history. */
+        void commit(String id, long timeStamp, String message);
+
+        /** Called for a commit that was dropped. */
+        void drop(String id);
+
+        /** Called for each commit imported by a synchronize, newest first. */
+        void imported(String id, long timeStamp, String message);
+
+        /** Called once every commit of a synchronize has been imported. */
+        void synchronize();
+
+        /** Called when every commit was removed from the repository. */
+        void clear();
+    }
+
+    // Finds the existing segments, checks the sealed ones' trailers, and scans the newest
+    // segment, truncating any torn or corrupted records at its end along with the records
+    // of an operation that never got its summary.
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path segment : stream) {
+                segments.add(segment);
+            }
+        }
+        Collections.sort(segments);
+
+        for (int i = 0; i < segments.size() - 1; i++) {
+            readSeal(segments.get(i));
+        }
+        if (segments.isEmpty()) {
+            segments.add(segmentPath(0));
+        }
+
+        Path last = segments.get(segments.size() - 1);
+        active = FileChannel.open(last, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long valid = 0;
+        if (active.size() > 0) {
+            MappedByteBuffer map = active.map(FileChannel.MapMode.READ_ONLY, 0, active.size());
+            ByteBuffer payload;
+            int records = 0;
+            int operationMaxId = maxId;
+            while (map.remaining() >= HEADER_BYTES && (payload = nextPayload(map)) != null) {
+                records++;
+                if (payload.get(0) == SUMMARY) {
+                    payload.position(1);
+                    summary = getSummary(payload);
+                    maxId = operationMaxId;
+                    activeRecords = records;
+                    valid = map.position();
+                } else if (payload.get(0) == COMMIT || payload.get(0) == IMPORT) {
+                    operationMaxId = Math.max(operationMaxId, payload.getInt(1));
+                }
+            }
+        }
+        if (valid < active.size()) {
+            active.truncate(valid);
+            active.force(true);
+        }
+        active.position(valid);
+        activeBytes = valid;
+    }
+
+    // Validates the trailer of a sealed segment and folds in its largest commit ID and
+    // summary.
+    private void readSeal(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer seal = ByteBuffer.allocate(SEAL_BYTES);
+            if (channel.size() < SEAL_BYTES) {
+                throw new IOException("Sealed segment is truncated: " + segment);
+            }
+            channel.read(seal, channel.size() - SEAL_BYTES);
+            seal.flip();
+            crc.reset();
+            crc.update(seal.array(), 0, SEAL_BYTES - 4);
+            long magic = seal.getLong();
+            seal.getInt();
+            int sealedMaxId = seal.getInt();
+            Summary sealed = getSummary(seal);
+            if (magic != SEAL_MAGIC || seal.getInt() != (int) crc.getValue()) {
+                throw new IOException("Sealed segment is corrupt: " + segment);
+            }
+            maxId = Math.max(maxId, sealedMaxId);
+            summary = sealed;
+        }
+    }
+
+    // Returns the payload of the next record in the buffer and advances past it, or
+    // returns null, leaving the position unchanged, if the record is torn or corrupt.
+    private ByteBuffer nextPayload(ByteBuffer buffer) {
+        int start = buffer.position();
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            buffer.position(start);
+            return null;
+        }
+        ByteBuffer payload = buffer.slice();
+        payload.limit(length);
+        crc.reset();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            buffer.position(start);
+            return null;
+        }
+        buffer.position(buffer.position() + length);
+        return payload;
+    }
+
+    // Decodes one record and passes it to the replayer.
+    private void replayRecord(ByteBuffer payload, Replayer replayer) {
+        byte type = payload.get();
+        if (type == COMMIT || type == IMPORT) {
+            String id = "" + payload.getInt();
+            long timeStamp = payload.getLong();
+            String message = getString(payload);
+            if (type == COMMIT) {
+                replayer.commit(id, timeStamp, message);
+            } else {
+                replayer.imported(id, timeStamp, message);
+            }
+        } else if (type == DROP) {
+            replayer.drop("" + payload.getInt());
+        } else if (type == SYNCHRONIZE) {
+            replayer.synchronize();
+        } else if (type == CLEAR) {
+            replayer.clear();
+        }
+        // Summaries only matter when the log is opened
+    }
+
+    // Rolls over to a new segment if the active one is full. Only done between
+    // operations, so a segment never ends partway through one.
+    private void startOperation() throws IOException {
+        if (activeBytes >= segmentBytes) {
+            roll();
+        }
+    }
+
+    // Ends an operation with a summary of the history after it, and writes the operation
+    // to the segment file.
+    private void finishOperation(Summary after) throws IOException {
+        startRecord(SUMMARY);
+        putSummary(record, after);
+        finishRecord();
+        flush();
+        summary = after;
+        written++;
+    }
+
+    // Begins encoding a new record of the given type.
+    private void startRecord(byte type) {
+        record.clear();
+        record.put(type);
+    }
+
+    // Encodes a commit's ID, timestamp and message into the current record.
+    private void putCommit(Repository.Commit commit) {
+        int id = Integer.parseInt(commit.id);
+        maxId = Math.max(maxId, id);
+        String text = commit.getMessage();
+        byte[] message = (text == null) ? null : text.getBytes(StandardCharsets.UTF_8);
+        ensureRecordCapacity(16 + ((message == null) ? 0 : message.length));
+        record.putInt(id);
+        record.putLong(commit.timeStamp);
+        if (message == null) {
+            record.putInt(-1);
+        } else {
+            record.putInt(message.length);
+            record.put(message);
+        }
+    }
+
+    // Grows the record buffer so it can hold at least 'extra' more bytes.
+    private void ensureRecordCapacity(int extra) {
+        if (record.remaining() < extra) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2,
+                    record.position() + extra));
+            record.flip();
+            larger.put(record);
+            record = larger;
+        }
+    }
+
+    // Checksums the current record and appends it to the write buffer.
+    private void finishRecord() throws IOException {
+        record.flip();
+        crc.reset();
+        crc.update(record.duplicate());
+        if (writeBuffer.remaining() < HEADER_BYTES + record.remaining()) {
+            flush();
+        }
+        if (writeBuffer.remaining() < HEADER_BYTES + record.remaining()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(record.remaining()).putInt((int) crc.getValue()).flip();
+            writeFully(header);
+            writeFully(record);
+        } else {
+            writeBuffer.putInt(record.remaining());
+            writeBuffer.putInt((int) crc.getValue());
+            writeBuffer.put(record);
+        }
+        activeBytes += HEADER_BYTES + record.limit();
+        activeRecords++;
+    }
+
+    // Writes out everything in the write buffer.
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        writeFully(writeBuffer);
+        writeBuffer.clear();
+    }
+
+    // Writes the whole buffer to the active segment.
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            active.write(buffer);
+        }
+    }
+
+    // Seals the active segment with a trailer and starts a new, empty one.
+    private void roll() throws IOException {
+        waitForForce(Long.MAX_VALUE);   // The segment must not be closed while forced
+        flush();
+        ByteBuffer seal = ByteBuffer.allocate(SEAL_BYTES);
+        seal.putLong(SEAL_MAGIC).putInt(activeRecords).putInt(maxId);
+        putSummary(seal, summary);
+        crc.reset();
+        crc.update(seal.array(), 0, SEAL_BYTES - 4);
+        seal.putInt((int) crc.getValue()).flip();
+        writeFully(seal);
+        active.force(true);
+        active.close();
+
+        Path next = segmentPath(segments.size());
+        segments.add(next);
+        active = FileChannel.open(next, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeBytes = 0;
+        activeRecords = 0;
+        durable = written;
+    }
+
+    // Waits while another writer forces the file, until every operation before 'target'
+    // is on disk or no force is running. Must hold the lock, which the wait releases.
+    private void waitForForce(long target) {
+        boolean interrupted = false;
+        while (forcing && durable < target) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Keep waiting; giving up would let the caller assume its records are safe
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns the path of the segment with the given index.
+    private Path segmentPath(int index) {
+        return directory.resolve(String.format("segment-%08d.log", index));
+    }
+
+    // Encodes a summary into the given buffer.
+    private static void putSummary(ByteBuffer buffer, Summary summary) {
+        buffer.putInt(summary.size);
+        buffer.putInt((summary.headId == null) ? -1 : Integer.parseInt(summary.headId));
+        buffer.putLong(summary.headTimeStamp);
+        buffer.putLong(summary.oldestTimeStamp);
+        buffer.putLong(summary.totalMessageBytes);
+    }
+
+    // Decodes a summary written by putSummary.
+    private static Summary getSummary(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        int headId = buffer.getInt();
+        long headTimeStamp = buffer.getLong();
+        long oldestTimeStamp = buffer.getLong();
+        long totalMessageBytes = buffer.getLong();
+        return (headId < 0) ? Summary.EMPTY : new Summary(size, "" + headId, headTimeStamp,
+                oldestTimeStamp, totalMessageBytes);
+    }
+
+    // Reads a length-prefixed UTF-8 string, where a length of -1 stands for null.
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
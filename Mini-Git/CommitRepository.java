@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * The operations every repository implementation supports, whatever way it stores its
+ * commits. Repository keeps one object per commit, and ColumnarRepository packs commits
+ * into arrays. Code written against this interface works with either.
+ *
+ * Commit IDs come from one counter shared by every implementation, so they stay unique
+ * across all of them. Histories are always read newest first.
+ *
+ * @param <R> The implementation itself, which is the only kind of repository it can
+ *            synchronize with.
+ */
+public interface CommitRepository<R extends CommitRepository<R>> {
+    /**
+     * Creates a new commit with the given message and adds it as the new head.
+     * @param message The commit message.
+     * @return The ID of the new commit.
+     */
+    String commit(String message);
+
+    /**
+     * Returns the ID of the head commit.
+     * @return The ID of the head commit, or null if the repository is empty.
+     */
+    String getRepoHead();
+
+    /**
+     * Returns the number of commits in the repository.
+     * @return The number of commits.
+     */
+    int getRepoSize();
+
+    /**
+     * Returns the timestamp of the newest commit.
+     * @return The newest timestamp in milliseconds, or -1 if the repository is empty.
+     */
+    long getNewestTimeStamp();
+
+    /**
+     * Returns the timestamp of the oldest commit.
+     * @return The oldest timestamp in milliseconds, or -1 if the repository is empty.
+     */
+    long getOldestTimeStamp();
+
+    /**
+     * Returns the combined UTF-8 size of every commit message.
+     * @return The total number of message bytes.
+     */
+    long getTotalMessageBytes();
+
+    /**
+     * Checks if a commit with the given ID is in the repository.
+     * @param targetId The ID of the commit to search for.
+     * @return true if the commit exists, false otherwise.
+     */
+    boolean contains(String targetId);
+
+    /**
+     * Removes the commit with the given ID, if it exists.
+     * @param targetId The ID of the commit to remove.
+     * @return true if the commit was removed, false if no such commit exists.
+     */
+    boolean drop(String targetId);
+
+    /**
+     * Returns up to 'n' of the most recent commits, one per line, in the form
+     * "[id] at [timestamp]: [message]".
+     * @param n The number of commits to return.
+     * @return The most recent 'n' commits, or fewer if the repository is smaller.
+     * @throws IllegalArgumentException If 'n' is less than or equal to zero.
+     */
+    String getHistory(int n);
+
+    /**
+     * Writes up to 'n' of the most recent commits to the given output in the same form as
+     * getHistory.
+     * @param n The number of commits to write.
+     * @param out The destination for the history.
+     * @throws IOException If writing to 'out' fails.
+     * @throws IllegalArgumentException If 'n' is less than or equal to zero.
+     */
+    void writeHistory(int n, Appendable out) throws IOException;
+
+    /**
+     * Returns an iterator over every commit, newest first.
+     * @return An iterator starting at the head commit.
+     */
+    Iterator<Repository.Commit> historyIterator();
+
+    /**
+     * Returns an iterator over the commits starting at the commit with the given ID and
+     * continuing toward the oldest commit.
+     * @param fromId The ID of the first commit to return.
+     * @return An iterator starting at the given commit.
+     * @throws IllegalArgumentException If no commit with the given ID exists.
+     */
+    Iterator<Repository.Commit> historyIterator(String fromId);
+
+    /**
+     * Returns a lazily evaluated, sequential stream of every commit, newest first.
+     * @return A stream over the history.
+     */
+    Stream<Repository.Commit> streamHistory();
+
+    /**
+     * Returns one page of history. Pass a null token to start at the head commit, and the
+     * returned page's next token to continue where the previous page stopped.
+     * @param pageToken The token of a previous page, or null for the first page.
+     * @param pageSize The maximum number of commits in the page.
+     * @return The requested page of commits.
+     * @throws IllegalArgumentException If 'pageSize' is less than or equal to zero, or the
+     *                                  token refers to a commit that no longer exists.
+     */
+    Repository.HistoryPage getHistoryPage(String pageToken, int pageSize);
+
+    /**
+     * Merges another repository's commits into this one in timestamp order and empties
+     * the other repository.
+     * @param other The repository to merge into this one.
+     */
+    void synchronize(R other);
+}
@@ -0,0 +1,348 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a mix of commit, contains, drop, getHistory and synchronize calls against many
+ * concurrent repositories from many threads, then reports throughput, latency
+ * percentiles for every operation, and whether the repositories are still consistent.
+ *
+ * Options are given as key=value arguments:
+ *      repos=64        the number of repositories
+ *      threads=16      the number of worker threads, or of looping tasks on virtual threads
+ *      virtual=false   run on virtual threads, where the JVM has them
+ *      rate=0          operations per second to start, open loop; 0 runs closed loop
+ *      seconds=10      how long to run
+ *      mix=commit:50,contains:20,drop:10,history:15,synchronize:5
+ *                      the relative weight of each operation
+ *
+ * In open-loop mode operations are started on a fixed schedule whether or not earlier ones
+ * have finished, and latency is measured from the scheduled start, so time spent waiting
+ * for a free thread counts against the operation.
+ *
+ * After the run, every repository is checked: commit IDs must be unique across all of
+ * them, every commit made and not dropped must be in exactly one of them, timestamps must
+ * never increase toward the tail, and each size must match its history. The head of each
+ * synchronized repository is also checked for order right after the synchronize. The
+ * program exits with status 1 if any check fails, or without checking if operations are
+ * still running a minute after the run ends.
+ */
+public class LoadGenerator {
+    // The operations, in the order used to index the weights and histograms
+    private static final String[] OPERATIONS =
+            {"commit", "contains", "drop", "history", "synchronize"};
+    private static final int COMMIT = 0;
+    private static final int CONTAINS = 1;
+    private static final int DROP = 2;
+    private static final int HISTORY = 3;
+    private static final int SYNCHRONIZE = 4;
+
+    // The number of recent commit IDs kept for contains and drop to pick from
+    private static final int RECENT_IDS = 4096;
+
+    // How much of a repository's head is checked for order after each synchronize
+    private static final int SYNC_CHECK_COMMITS = 1000;
+
+    private final Repository[] repos;
+    private final int[] cumulativeWeights;
+    private final AtomicReferenceArray<String> recentIds =
+            new AtomicReferenceArray<>(RECENT_IDS);
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong syncViolations = new AtomicLong();
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+
+    private LoadGenerator(int repoCount, int[] weights) {
+        repos = new Repository[repoCount];
+        for (int i = 0; i < repoCount; i++) {
+            repos[i] = Repository.concurrent("repo" + i);
+        }
+        cumulativeWeights = new int[weights.length];
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            cumulativeWeights[i] = total;
+            latencies[i] = new LatencyHistogram();
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("The operation mix has no weight");
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        options.put("repos", "64");
+        options.put("threads", "16");
+        options.put("virtual", "false");
+        options.put("rate", "0");
+        options.put("seconds", "10");
+        options.put("mix", "commit:50,contains:20,drop:10,history:15,synchronize:5");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0 || !options.containsKey(arg.substring(0, equals))) {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        int threads = Integer.parseInt(options.get("threads"));
+        long rate = Long.parseLong(options.get("rate"));
+        long seconds = Long.parseLong(options.get("seconds"));
+        LoadGenerator generator = new LoadGenerator(Integer.parseInt(options.get("repos")),
+                parseMix(options.get("mix")));
+        ExecutorService executor = newExecutor(Boolean.parseBoolean(options.get("virtual")),
+                threads);
+
+        System.out.println("Running " + options);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        if (rate > 0) {
+            generator.runOpenLoop(executor, rate, start, end);
+        } else {
+            generator.runClosedLoop(executor, threads, end);
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // The repositories are still changing, so checking them would prove nothing
+            executor.shutdownNow();
+            System.out.println("FAILED: operations were still running a minute after the"
+                    + " run ended");
+            System.exit(1);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        generator.report(elapsed);
+        if (!generator.checkInvariants()) {
+            System.exit(1);
+        }
+    }
+
+    // Parses an operation mix such as "commit:50,drop:10" into weights. Operations that
+    // are not mentioned get no weight.
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : mix.split(",")) {
+            String[] pair = part.split(":");
+            int index = Arrays.asList(OPERATIONS).indexOf(pair[0].trim());
+            if (pair.length != 2 || index < 0) {
+                throw new IllegalArgumentException("Bad operation weight " + part);
+            }
+            weights[index] = Integer.parseInt(pair[1].trim());
+        }
+        return weights;
+    }
+
+    // Returns an executor that runs every task on a new virtual thread if asked for and
+    // the JVM supports it, and otherwise a pool of platform threads.
+    private static ExecutorService newExecutor(boolean virtual, int threads) {
+        if (virtual) {
+            try {
+                // Looked up reflectively so this still compiles and runs on JVMs before 21
+                return (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not available on this JVM; using "
+                        + threads + " platform threads");
+            }
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    // Runs 'threads' tasks that each start a new operation as soon as the last one ends.
+    private void runClosedLoop(ExecutorService executor, int threads, long end) {
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                while (System.nanoTime() < end) {
+                    runOperation(System.nanoTime());
+                }
+            });
+        }
+    }
+
+    // Starts 'rate' operations per second on a fixed schedule until the end time.
+    private void runOpenLoop(ExecutorService executor, long rate, long start, long end) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        for (long due = start; due < end; due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long scheduled = due;
+            executor.execute(() -> runOperation(scheduled));
+        }
+    }
+
+    // Runs one randomly chosen operation and records its latency measured from 'start'.
+    private void runOperation(long start) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int operation = 0;
+        while (pick >= cumulativeWeights[operation]) {
+            operation++;
+        }
+        Repository repo = repos[random.nextInt(repos.length)];
+
+        if (operation == COMMIT) {
+            String id = repo.commit("load " + random.nextInt());
+            recentIds.set(random.nextInt(RECENT_IDS), id);
+            commits.incrementAndGet();
+        } else if (operation == CONTAINS) {
+            String id = recentIds.get(random.nextInt(RECENT_IDS));
+            if (id != null) {
+                repo.contains(id);
+            }
+        } else if (operation == DROP) {
+            String id = recentIds.get(random.nextInt(RECENT_IDS));
+            if (id != null && repo.drop(id)) {
+                drops.incrementAndGet();
+            }
+        } else if (operation == HISTORY) {
+            repo.getHistory(10);
+        } else {
+            Repository other = repos[random.nextInt(repos.length)];
+            if (other != repo) {
+                repo.synchronize(other);
+                if (!isOrdered(repo, SYNC_CHECK_COMMITS)) {
+                    syncViolations.incrementAndGet();
+                }
+            }
+        }
+        latencies[operation].record(System.nanoTime() - start);
+    }
+
+    // Returns true if the first 'limit' commits of the repository's history never go up in
+    // time toward the tail.
+    private static boolean isOrdered(Repository repo, int limit) {
+        Iterator<Repository.Commit> history = repo.historyIterator();
+        long previous = Long.MAX_VALUE;
+        for (int i = 0; i < limit && history.hasNext(); i++) {
+            long timeStamp = history.next().timeStamp;
+            if (timeStamp > previous) {
+                return false;
+            }
+            previous = timeStamp;
+        }
+        return true;
+    }
+
+    // Prints the throughput and the latency percentiles of every operation.
+    private void report(long elapsedNanos) {
+        long total = 0;
+        System.out.printf("%-12s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "p50 us", "p99 us", "p999 us", "max us");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            LatencyHistogram histogram = latencies[i];
+            long count = histogram.count();
+            total += count;
+            if (count > 0) {
+                System.out.printf("%-12s %10d %10.1f %10.1f %10.1f %10.1f%n", OPERATIONS[i],
+                        count, histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3,
+                        histogram.percentile(99.9) / 1e3, histogram.max() / 1e3);
+            }
+        }
+        System.out.printf("%d operations in %.1f s: %.0f ops/s%n", total, elapsedNanos / 1e9,
+                total / (elapsedNanos / 1e9));
+    }
+
+    // Checks every repository once the load has stopped, printing each failed check.
+    // Returns true if every check passed.
+    private boolean checkInvariants() {
+        boolean ok = true;
+        Set<String> ids = new HashSet<>();
+        long found = 0;
+        for (Repository repo : repos) {
+            long size = 0;
+            long previous = Long.MAX_VALUE;
+            boolean ordered = true;
+            for (Iterator<Repository.Commit> it = repo.historyIterator(); it.hasNext(); ) {
+                Repository.Commit commit = it.next();
+                if (!ids.add(commit.id)) {
+                    System.out.println("FAILED: commit " + commit.id + " appears twice");
+                    ok = false;
+                }
+                ordered &= commit.timeStamp <= previous;
+                previous = commit.timeStamp;
+                size++;
+            }
+            if (!ordered) {
+                System.out.println("FAILED: " + repo + " is not in timestamp order");
+                ok = false;
+            }
+            if (size != repo.getRepoSize()) {
+                System.out.println("FAILED: " + repo + " holds " + size
+                        + " commits but reports " + repo.getRepoSize());
+                ok = false;
+            }
+            found += size;
+        }
+        long expected = commits.get() - drops.get();
+        if (found != expected) {
+            System.out.println("FAILED: found " + found + " commits, expected " + expected);
+            ok = false;
+        }
+        if (syncViolations.get() > 0) {
+            System.out.println("FAILED: " + syncViolations.get()
+                    + " synchronizes left a repository out of order");
+            ok = false;
+        }
+        System.out.println(ok ? "All invariants hold (" + found + " commits)"
+                : "Invariants violated");
+        return ok;
+    }
+
+    // A concurrent latency histogram with about 3% precision. Values below 64 get their
+    // own bucket; above that, each power of two is split into 32 equal buckets.
+    private static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 32;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 + 58 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            buckets.incrementAndGet(indexOf(value));
+            count.increment();
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // Returns the upper bound of the bucket holding the given percentile.
+        long percentile(double percentile) {
+            long rank = (long) Math.ceil(count() * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return max();
+        }
+
+        private static int indexOf(long value) {
+            if (value < 64) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);   // At least 6
+            int sub = (int) (value >>> (exponent - 5)) & (SUB_BUCKETS - 1);
+            return 64 + (exponent - 6) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int index) {
+            if (index < 64) {
+                return index;
+            }
+            int exponent = (index - 64) / SUB_BUCKETS + 6;
+            int sub = (index - 64) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 5)) - 1;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+import java.util.*;
+
+/**
+ * An inverted index from the words in commit messages to the IDs of the commits that use
+ * them. Messages are split into lowercase runs of letters and digits. Each word's posting
+ * list holds its commit IDs in increasing order, stored as variable-length encoded gaps
+ * between consecutive IDs, so common words cost about a byte per commit.
+ *
+ * Commit IDs are handed out in the order commits are made, so listing IDs from highest to
+ * lowest lists commits newest first.
+ */
+class MessageIndex {
+    private final TreeMap<String, PostingList> postings = new TreeMap<>();
+
+    /**
+     * Adds a commit's message to the index.
+     * @param commit The commit to add.
+     */
+    synchronized void add(Repository.Commit commit) {
+        int id = Integer.parseInt(commit.id);
+        for (String token : tokenize(commit.getMessage())) {
+            postings.computeIfAbsent(token, t -> new PostingList()).add(id);
+        }
+    }
+
+    /**
+     * Removes a commit's message from the index.
+     * @param commit The commit to remove.
+     */
+    synchronized void remove(Repository.Commit commit) {
+        int id = Integer.parseInt(commit.id);
+        for (String token : tokenize(commit.getMessage())) {
+            PostingList list = postings.get(token);
+            if (list != null && list.remove(id) && list.count == 0) {
+                postings.remove(token);
+            }
+        }
+    }
+
+    /**
+     * Removes every commit from the index.
+     */
+    synchronized void clear() {
+        postings.clear();
+    }
+
+    /**
+     * Returns the IDs of the commits whose message contains the given word, newest first.
+     * @param term The word to look for.
+     * @return The matching commit IDs.
+     */
+    synchronized List<String> search(String term) {
+        PostingList list = postings.get(term.toLowerCase());
+        return (list == null) ? new ArrayList<>() : toIds(list.decode(), list.count);
+    }
+
+    /**
+     * Returns the IDs of the commits whose message contains every one of the given words,
+     * newest first.
+     * @param terms The words to look for.
+     * @return The matching commit IDs.
+     */
+    synchronized List<String> searchAll(String... terms) {
+        if (terms.length == 0) {
+            return new ArrayList<>();
+        }
+        // Intersect starting from the shortest list so the working set only shrinks
+        PostingList[] lists = new PostingList[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            lists[i] = postings.get(terms[i].toLowerCase());
+            if (lists[i] == null) {
+                return new ArrayList<>();
+            }
+        }
+        Arrays.sort(lists, Comparator.comparingInt(list -> list.count));
+        int[] result = lists[0].decode();
+        int count = lists[0].count;
+        for (int i = 1; i < lists.length && count > 0; i++) {
+            int[] other = lists[i].decode();
+            int kept = 0;
+            int j = 0;
+            for (int k = 0; k < count; k++) {
+                while (j < lists[i].count && other[j] < result[k]) {
+                    j++;
+                }
+                if (j < lists[i].count && other[j] == result[k]) {
+                    result[kept++] = result[k];
+                }
+            }
+            count = kept;
+        }
+        return toIds(result, count);
+    }
+
+    /**
+     * Returns the IDs of the commits whose message contains a word starting with the
+     * given prefix, newest first.
+     * @param prefix The start of the words to look for.
+     * @return The matching commit IDs.
+     */
+    synchronized List<String> searchPrefix(String prefix) {
+        String low = prefix.toLowerCase();
+        SortedMap<String, PostingList> matches = postings.subMap(low, low + Character.MAX_VALUE);
+        int total = 0;
+        for (PostingList list : matches.values()) {
+            total += list.count;
+        }
+        int[] ids = new int[total];
+        int count = 0;
+        for (PostingList list : matches.values()) {
+            System.arraycopy(list.decode(), 0, ids, count, list.count);
+            count += list.count;
+        }
+        Arrays.sort(ids);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || ids[distinct - 1] != ids[i]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        return toIds(ids, distinct);
+    }
+
+    /**
+     * Returns an estimate of the heap used by the index, in bytes.
+     * @return The estimated memory use.
+     */
+    synchronized long memoryBytes() {
+        long bytes = 0;
+        for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+            // Tree entry, key string and its characters, and the posting list with its array
+            bytes += 40 + 40 + entry.getKey().length() + 32 + 16 + entry.getValue().data.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the distinct words of a message, in lowercase.
+     * @param message The message to split up, which may be null.
+     * @return The message's words.
+     */
+    static Set<String> tokenize(String message) {
+        Set<String> tokens = new HashSet<>();
+        if (message == null) {
+            return tokens;
+        }
+        int start = -1;
+        for (int i = 0; i <= message.length(); i++) {
+            boolean word = i < message.length() && Character.isLetterOrDigit(message.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                tokens.add(message.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    // Converts the first 'count' increasing IDs to strings, highest first.
+    private static List<String> toIds(int[] ids, int count) {
+        List<String> result = new ArrayList<>(count);
+        for (int i = count - 1; i >= 0; i--) {
+            result.add("" + ids[i]);
+        }
+        return result;
+    }
+
+    // The IDs of the commits using one word, in increasing order, stored as the gaps
+    // between consecutive IDs. Each gap takes seven bits per byte, with the high bit set
+    // on every byte but the last.
+    private static class PostingList {
+        private byte[] data = new byte[4];
+        private int length;     // The number of bytes of data in use
+        private int count;      // The number of IDs in the list
+        private int lastId;     // The largest ID in the list
+
+        // Adds an ID. Appends in constant time when the ID is the largest so far.
+        void add(int id) {
+            if (count == 0 || id > lastId) {
+                appendGap(count == 0 ? id : id - lastId);
+                lastId = id;
+                count++;
+                return;
+            }
+            int[] ids = decode();
+            int index = Arrays.binarySearch(ids, 0, count, id);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            int[] updated = new int[count + 1];
+            System.arraycopy(ids, 0, updated, 0, index);
+            updated[index] = id;
+            System.arraycopy(ids, index, updated, index + 1, count - index);
+            encode(updated, count + 1);
+        }
+
+        // Removes an ID, returning true if it was in the list.
+        boolean remove(int id) {
+            int[] ids = decode();
+            int index = Arrays.binarySearch(ids, 0, count, id);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(ids, index + 1, ids, index, count - index - 1);
+            encode(ids, count - 1);
+            return true;
+        }
+
+        // Returns the IDs in increasing order.
+        int[] decode() {
+            int[] ids = new int[count];
+            int position = 0;
+            int previous = 0;
+            for (int i = 0; i < count; i++) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                previous += gap;
+                ids[i] = previous;
+            }
+            return ids;
+        }
+
+        // Replaces the list with the first 'n' of the given increasing IDs.
+        private void encode(int[] ids, int n) {
+            length = 0;
+            count = 0;
+            lastId = 0;
+            for (int i = 0; i < n; i++) {
+                appendGap(i == 0 ? ids[i] : ids[i] - ids[i - 1]);
+                lastId = ids[i];
+                count++;
+            }
+        }
+
+        // Appends one gap in the variable-length encoding.
+        private void appendGap(int gap) {
+            if (data.length - length < 5) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+            }
+            while ((gap & ~0x7F) != 0) {
+                data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Holds commit messages in less memory than one String per commit. A message seen before
+ * is interned, so every commit with that text shares one String. Other messages are
+ * appended as UTF-8 to a block of the arena, and each full block is compressed. A commit
+ * then keeps only a small reference to where its message sits, and the message is only
+ * decompressed when something asks for its text. The most recently decompressed blocks
+ * are cached, since history is usually read in order and neighboring commits share a
+ * block.
+ *
+ * A commit's message is kept as an Object that is either null, a String, or a Stored
+ * reference into some store; text(Object) and utf8Length(Object) handle all three.
+ */
+class MessageStore {
+    // The number of message bytes gathered before a block is compressed
+    static final int BLOCK_BYTES = 64 << 10;
+
+    // How many distinct messages may be interned, and how many recent messages are
+    // remembered to notice repeats
+    private static final int MAX_INTERNED = 1 << 16;
+    private static final int SEEN_SLOTS = 1 << 16;
+
+    // The number of decompressed blocks kept for reading
+    private static final int CACHED_BLOCKS = 8;
+
+    private final Map<String, String> interned = new ConcurrentHashMap<>();
+    private final int[] seen = new int[SEEN_SLOTS];    // The hash codes of recent messages
+    private Block open = new Block(this, BLOCK_BYTES); // The block being filled
+
+    private final Map<Block, byte[]> inflated =
+            new LinkedHashMap<Block, byte[]>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Block, byte[]> eldest) {
+                    return size() > CACHED_BLOCKS;
+                }
+            };
+
+    private long internedBytes;     // The UTF-8 size of every interned message
+    private long compressedBytes;   // The size of every compressed block
+
+    /**
+     * Takes in a message and returns what a commit should keep in its place: the message
+     * itself if it is null, the interned copy if the message was seen before, or a
+     * reference to it in the arena otherwise.
+     * @param message The message to store.
+     * @return The value to keep in the commit.
+     */
+    Object store(String message) {
+        if (message == null) {
+            return null;
+        }
+        String shared = interned.get(message);
+        if (shared != null) {
+            return shared;
+        }
+        synchronized (this) {
+            shared = interned.get(message);
+            if (shared != null) {
+                return shared;
+            }
+            int hash = message.hashCode();
+            int slot = (hash ^ (hash >>> 16)) & (SEEN_SLOTS - 1);
+            if (seen[slot] == hash && interned.size() < MAX_INTERNED) {
+                // The second time a message turns up it is worth sharing. A different
+                // message with the same hash is interned needlessly, which is harmless.
+                interned.put(message, message);
+                internedBytes += message.getBytes(StandardCharsets.UTF_8).length;
+                return message;
+            }
+            seen[slot] = hash;
+            return append(message.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Returns the text of a message kept by a commit.
+     * @param message The value the commit keeps for its message.
+     * @return The message text, or null if the commit has no message.
+     */
+    static String text(Object message) {
+        if (message instanceof Stored) {
+            Stored stored = (Stored) message;
+            Block block = stored.block;
+            return new String(block.store.bytes(block), stored.offset, stored.length,
+                    StandardCharsets.UTF_8);
+        }
+        return (String) message;
+    }
+
+    /**
+     * Returns the UTF-8 size of a message kept by a commit without decompressing it.
+     * @param message The value the commit keeps for its message.
+     * @return The number of UTF-8 bytes in the message, or 0 if there is none.
+     */
+    static long utf8Length(Object message) {
+        if (message instanceof Stored) {
+            return ((Stored) message).length;
+        }
+        return (message == null) ? 0
+                : ((String) message).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Returns the number of bytes this store holds for message text: the compressed
+     * blocks, the block being filled, and one copy of each interned message.
+     * @return The size of the stored text.
+     */
+    synchronized long memoryBytes() {
+        return compressedBytes + open.raw.length + internedBytes;
+    }
+
+    // Appends a message to the open block, sealing it first if the message does not fit.
+    // A message longer than a whole block gets a block of its own. Must hold the lock.
+    private Stored append(byte[] bytes) {
+        if (bytes.length > open.raw.length - open.used) {
+            seal(open);
+            open = new Block(this, Math.max(BLOCK_BYTES, bytes.length));
+        }
+        Stored stored = new Stored(open, open.used, bytes.length);
+        System.arraycopy(bytes, 0, open.raw, open.used, bytes.length);
+        open.used += bytes.length;
+        return stored;
+    }
+
+    // Compresses a full block and drops its uncompressed bytes. Must hold the lock.
+    private void seal(Block block) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(block.raw, 0, block.used);
+        deflater.finish();
+        byte[] out = new byte[block.used + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        deflater.end();
+        block.compressed = Arrays.copyOf(out, length);
+        compressedBytes += length;
+        // Readers that already loaded the raw bytes may keep using them
+        block.raw = null;
+    }
+
+    // Returns the uncompressed bytes of a block, decompressing it if it is not cached.
+    private byte[] bytes(Block block) {
+        byte[] raw = block.raw;
+        if (raw != null) {
+            return raw;
+        }
+        synchronized (inflated) {
+            byte[] cached = inflated.get(block);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] bytes = new byte[block.used];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(block.compressed);
+            int length = 0;
+            while (length < bytes.length) {
+                length += inflater.inflate(bytes, length, bytes.length - length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);     // The store wrote the data itself
+        } finally {
+            inflater.end();
+        }
+        synchronized (inflated) {
+            inflated.put(block, bytes);
+        }
+        return bytes;
+    }
+
+    // A run of messages, uncompressed while it is being filled and compressed afterwards.
+    private static class Block {
+        final MessageStore store;   // The store the block belongs to
+        volatile byte[] raw;        // The message bytes, or null once compressed
+        volatile byte[] compressed; // The compressed message bytes, or null while filling
+        int used;                   // The number of message bytes in the block
+
+        Block(MessageStore store, int capacity) {
+            this.store = store;
+            raw = new byte[capacity];
+        }
+    }
+
+    // Where a commit's message sits in a store.
+    static class Stored {
+        private final Block block;
+        private final int offset;
+        private final int length;
+
+        private Stored(Block block, int offset, int length) {
+            this.block = block;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.*;
+
+/**
+ * Compares a repository that keeps one String per commit message with one that uses a
+ * message store, on the same history. Most of the messages are generated merge and
+ * version bump messages drawn from a small set; the rest are unique. Reports the heap
+ * used by each repository, the bytes of message text each holds, and the time to read
+ * recent history and to read every message.
+ *
+ * Usage: java MessageStoreReport [commits] [percent generated]
+ */
+public class MessageStoreReport {
+    public static void main(String[] args) {
+        int commits = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        int generated = (args.length > 1) ? Integer.parseInt(args[1]) : 70;
+
+        String[] messages = new String[commits];
+        Random random = new Random(42);
+        for (int i = 0; i < commits; i++) {
+            if (random.nextInt(100) < generated) {
+                messages[i] = random.nextBoolean()
+                        ? "Merge branch 'main' into feature-" + random.nextInt(100)
+                        : "Bump version to 2." + random.nextInt(20) + "." + random.nextInt(10);
+            } else {
+                messages[i] = "Fix issue #" + i + " where the parser drops trailing "
+                        + "whitespace in module " + random.nextInt(1000);
+            }
+        }
+
+        long baseline = usedHeap();
+        Repository plain = build("plain", messages, false);
+        long plainHeap = usedHeap() - baseline;
+        Repository stored = build("stored", messages, true);
+        long storedHeap = usedHeap() - baseline - plainHeap;
+
+        System.out.printf("Commits:                 %d (%d%% generated messages)%n",
+                commits, generated);
+        System.out.printf("Message text:            %.1f MB%n",
+                plain.getTotalMessageBytes() / 1e6);
+        System.out.printf("Message store text:      %.1f MB%n",
+                stored.getMessageStoreBytes() / 1e6);
+        System.out.printf("Heap, plain:             %.1f MB%n", plainHeap / 1e6);
+        System.out.printf("Heap, message store:     %.1f MB (%.0f%% saved)%n",
+                storedHeap / 1e6, 100.0 * (plainHeap - storedHeap) / plainHeap);
+        System.out.printf("getHistory(100), plain:  %.1f us%n", timeHistory(plain) / 1e3);
+        System.out.printf("getHistory(100), store:  %.1f us%n", timeHistory(stored) / 1e3);
+        System.out.printf("Every message, plain:    %.1f ns/commit%n",
+                (double) timeMessages(plain) / commits);
+        System.out.printf("Every message, store:    %.1f ns/commit%n",
+                (double) timeMessages(stored) / commits);
+    }
+
+    // Builds a repository holding the given messages, oldest first.
+    private static Repository build(String name, String[] messages, boolean store) {
+        Repository repo = new Repository(name);
+        if (store) {
+            repo.enableMessageStore();
+        }
+        for (String message : messages) {
+            // Copies the message text, as reading it from anywhere else would
+            repo.commit(new String(message.toCharArray()));
+        }
+        return repo;
+    }
+
+    // Returns the heap in use after collecting garbage.
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Returns the median time, in nanoseconds, of getHistory(100).
+    private static long timeHistory(Repository repo) {
+        long[] times = new long[2001];
+        int length = 0;
+        for (int i = 0; i < times.length; i++) {
+            long start = System.nanoTime();
+            length += repo.getHistory(100).length();
+            times[i] = System.nanoTime() - start;
+        }
+        if (length == 0) {
+            throw new IllegalStateException();
+        }
+        Arrays.sort(times);
+        return times[times.length / 2];
+    }
+
+    // Returns the time, in nanoseconds, to read the message of every commit.
+    private static long timeMessages(Repository repo) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            long length = 0;
+            for (Iterator<Repository.Commit> it = repo.historyIterator(); it.hasNext(); ) {
+                length += it.next().getMessage().length();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            if (length == 0) {
+                throw new IllegalStateException();
+            }
+        }
+        return best;
+    }
+}
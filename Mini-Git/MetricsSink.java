@@ -0,0 +1,21 @@
+/**
+ * Receives a measurement for every instrumented operation on a repository. Attach one
+ * with Repository.setMetricsSink. Implementations are called on the thread that ran the
+ * operation, so they must be thread-safe and should return quickly.
+ */
+public interface MetricsSink {
+    /**
+     * The repository operations that are measured.
+     */
+    enum Operation {
+        COMMIT, DROP, CONTAINS, HISTORY, SYNCHRONIZE
+    }
+
+    /**
+     * Records one completed operation.
+     * @param operation The operation that ran.
+     * @param nanos How long the operation took, in nanoseconds.
+     * @param nodesVisited The number of commits the operation walked over.
+     */
+    void record(Operation operation, long nanos, long nodesVisited);
+}
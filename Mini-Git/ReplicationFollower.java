@@ -0,0 +1,214 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.*;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Mirrors the history of a repository served by a ReplicationLeader into a local
+ * repository. A background thread applies each batch of commits as it arrives and
+ * acknowledges it, so the leader can keep several batches in flight.
+ *
+ * The local repository should only be changed by its follower. If the connection drops,
+ * reconnect() resumes from the newest commit received instead of starting over.
+ */
+public class ReplicationFollower implements Closeable {
+    private final Repository repository;
+    private final InetSocketAddress leader;
+    private final SocketChannel channel;
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    // Where this follower stands in the leader's history, sent back on reconnect
+    private volatile long session;
+    private volatile long version;
+
+    private volatile long receivedCommits;  // The number of commits applied so far
+    private volatile long receivedBytes;    // The number of compressed bytes received
+
+    private ReplicationFollower(Repository repository, InetSocketAddress leader,
+            long session, long version) throws IOException {
+        this.repository = repository;
+        this.leader = leader;
+        this.session = session;
+        this.version = version;
+        channel = SocketChannel.open(leader);
+        channel.socket().setTcpNoDelay(true);
+
+        String head = repository.getRepoHead();
+        ByteBuffer hello = ByteBuffer.allocate(ReplicationLeader.HELLO_BYTES);
+        hello.putLong(session);
+        hello.putLong(version);
+        hello.putInt((head == null) ? -1 : Integer.parseInt(head));
+        hello.flip();
+        writeFully(hello);
+
+        thread = new Thread(this::run, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Connects the given repository to a leader. The repository's history is replaced by
+     * the leader's history, then kept up to date.
+     * @param repository The repository that mirrors the leader.
+     * @param leader The address of the leader.
+     * @return The running follower.
+     * @throws IOException If the leader cannot be reached.
+     * @throws IllegalArgumentException If the repository or the address is null.
+     */
+    public static ReplicationFollower connect(Repository repository, InetSocketAddress leader)
+            throws IOException {
+        if (repository == null || leader == null) {
+            throw new IllegalArgumentException();
+        }
+        return new ReplicationFollower(repository, leader, 0, -1);
+    }
+
+    /**
+     * Closes this follower's connection if it is still open, and connects again to the
+     * same leader. The leader only sends the commits made since the newest commit this
+     * follower received, unless the leader's history was rewritten in the meantime.
+     * @return The new follower.
+     * @throws IOException If the leader cannot be reached.
+     */
+    public ReplicationFollower reconnect() throws IOException {
+        close();
+        return new ReplicationFollower(repository, leader, session, version);
+    }
+
+    /**
+     * Returns the number of commits received and applied so far.
+     * @return The number of commits received.
+     */
+    public long getReceivedCommits() {
+        return receivedCommits;
+    }
+
+    /**
+     * Returns the number of compressed bytes of commits received so far.
+     * @return The number of bytes received.
+     */
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * Returns the error that stopped this follower, if any.
+     * @return The error, or null if the follower is running or was closed.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stops following the leader and closes the connection.
+     * @throws IOException If the connection cannot be closed.
+     */
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Applies batches until the follower is closed or the connection fails.
+    private void run() {
+        ByteBuffer header = ByteBuffer.allocate(4 + ReplicationLeader.BATCH_HEADER_BYTES);
+        ByteBuffer ack = ByteBuffer.allocate(ReplicationLeader.ACK_BYTES);
+        byte[] compressed = new byte[64 << 10];
+        byte[] raw = new byte[64 << 10];
+        Inflater inflater = new Inflater();
+        try {
+            while (!closed) {
+                header.clear();
+                readFully(header);
+                header.flip();
+                int compressedLength = header.getInt() - ReplicationLeader.BATCH_HEADER_BYTES;
+                int sequence = header.getInt();
+                boolean reset = header.get() == ReplicationLeader.RESET;
+                long batchSession = header.getLong();
+                long batchVersion = header.getLong();
+                int count = header.getInt();
+                int rawLength = header.getInt();
+
+                if (compressed.length < compressedLength) {
+                    compressed = new byte[compressedLength];
+                }
+                readFully(ByteBuffer.wrap(compressed, 0, compressedLength));
+                if (raw.length < rawLength) {
+                    raw = new byte[rawLength];
+                }
+                inflater.reset();
+                inflater.setInput(compressed, 0, compressedLength);
+                int inflated = 0;
+                while (inflated < rawLength) {
+                    int n = inflater.inflate(raw, inflated, rawLength - inflated);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Truncated batch " + sequence);
+                    }
+                    inflated += n;
+                }
+
+                repository.replicate(decode(ByteBuffer.wrap(raw, 0, rawLength), count), reset);
+                session = batchSession;
+                version = batchVersion;
+                receivedCommits += count;
+                receivedBytes += compressedLength;
+
+                ack.clear();
+                ack.putInt(sequence);
+                ack.flip();
+                writeFully(ack);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                failure = e;
+            }
+        } catch (DataFormatException e) {
+            failure = new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Decodes 'count' commits, oldest first.
+    private static List<Repository.ReplicatedCommit> decode(ByteBuffer in, int count) {
+        List<Repository.ReplicatedCommit> commits = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String id = "" + in.getInt();
+            long timeStamp = in.getLong();
+            int length = in.getInt();
+            String message = null;
+            if (length >= 0) {
+                message = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+            }
+            commits.add(new Repository.ReplicatedCommit(id, timeStamp, message));
+        }
+        return commits;
+    }
+
+    // Reads until the buffer is full.
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    // Writes the whole buffer.
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Deflater;
+
+/**
+ * Streams a repository's commits to follower repositories on the same machine over local
+ * TCP connections, so each follower mirrors the repository's history. A follower first
+ * receives the whole history, and after that only the commits made since the last commit
+ * it was sent, so catching up costs time proportional to the missing commits. If commits
+ * are dropped or synchronized into the middle of the history, the next batch replaces the
+ * follower's history instead.
+ *
+ * Commits are sent in batches compressed with Deflate. Acknowledgements are pipelined:
+ * up to 'window' batches may be in flight before the leader waits for the follower to
+ * acknowledge one. A single thread serves every follower with a selector, and checks the
+ * repository for new commits every POLL_MILLIS milliseconds while it is otherwise idle.
+ *
+ * The repository is read while other threads may be writing to it, so it should be one
+ * created with Repository.concurrent(String).
+ */
+public class ReplicationLeader implements Closeable {
+    /** The largest number of commits sent in one batch by default. */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    /** The number of unacknowledged batches allowed in flight by default. */
+    public static final int DEFAULT_WINDOW = 8;
+
+    // How often the repository is checked for new commits
+    private static final long POLL_MILLIS = 1;
+
+    // Frame flag: the batch replaces the follower's history instead of adding to it
+    static final byte RESET = 1;
+
+    // Every batch is [int frame length][int sequence][byte flags][long session]
+    // [long version][int commit count][int raw length][deflated commits], where each
+    // commit is [int id][long timestamp][int message length, or -1 if null][message]
+    static final int BATCH_HEADER_BYTES = 29;
+
+    // A follower opens with [long session][long version][int head ID, or -1], then
+    // acknowledges each batch it has applied with [int sequence]
+    static final int HELLO_BYTES = 20;
+    static final int ACK_BYTES = 4;
+
+    private final Repository repository;
+    private final int batchSize;
+    private final int window;
+    private final long session = new Random().nextLong();
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private ReplicationLeader(Repository repository, int port, int batchSize, int window)
+            throws IOException {
+        this.repository = repository;
+        this.batchSize = batchSize;
+        this.window = window;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this::run, "replication-leader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts serving the given repository to followers on a loopback port, using the
+     * default batch size and window.
+     * @param repository The repository to replicate.
+     * @param port The port to listen on, or 0 to pick a free one.
+     * @return The running leader.
+     * @throws IOException If the port cannot be opened.
+     */
+    public static ReplicationLeader start(Repository repository, int port) throws IOException {
+        return start(repository, port, DEFAULT_BATCH_SIZE, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Starts serving the given repository to followers on a loopback port.
+     * @param repository The repository to replicate.
+     * @param port The port to listen on, or 0 to pick a free one.
+     * @param batchSize The largest number of commits sent in one batch.
+     * @param window The number of unacknowledged batches allowed in flight.
+     * @return The running leader.
+     * @throws IOException If the port cannot be opened.
+     * @throws IllegalArgumentException If the repository is null, or 'batchSize' or
+     *                                  'window' is less than 1.
+     */
+    public static ReplicationLeader start(Repository repository, int port, int batchSize,
+            int window) throws IOException {
+        if (repository == null || batchSize < 1 || window < 1) {
+            throw new IllegalArgumentException();
+        }
+        return new ReplicationLeader(repository, port, batchSize, window);
+    }
+
+    /**
+     * Returns the address followers should connect to.
+     * @return The leader's address.
+     * @throws IOException If the address cannot be read.
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Stops serving followers and closes every connection.
+     * @throws IOException If a connection cannot be closed.
+     */
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    // Serves followers until the leader is closed.
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select(POLL_MILLIS);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Follower follower = (Follower) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            follower.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            follower.write();
+                        }
+                    } catch (IOException e) {
+                        // A follower that goes away may reconnect later
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && key.attachment() != null) {
+                        Follower follower = (Follower) key.attachment();
+                        follower.fill();
+                        key.interestOps(follower.pending == null ? SelectionKey.OP_READ
+                                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Accepts a new follower connection.
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ, new Follower(channel));
+        }
+    }
+
+    // The replication state of one connected follower.
+    private class Follower {
+        private final SocketChannel channel;
+        private final ByteBuffer input = ByteBuffer.allocate(4096);
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private ByteBuffer raw = ByteBuffer.allocate(64 << 10);
+        private byte[] compressed = new byte[64 << 10];
+
+        private boolean greeted;        // true once the follower's hello has arrived
+        private boolean synced;         // true once the follower has been sent a full history
+        private long version;           // The rewrite count the follower's history matches
+        private String sentId;          // The newest commit sent, or null if none
+
+        private final Deque<Repository.Commit> queued = new ArrayDeque<>(); // Oldest first
+        private boolean queuedReset;    // true if the next batch must replace the history
+        private ByteBuffer pending;     // The batch being written, or null
+        private int nextSequence;       // The sequence number of the next batch
+        private int acknowledged = -1;  // The highest sequence number acknowledged
+
+        Follower(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Reads the follower's hello and acknowledgements.
+        void read() throws IOException {
+            if (channel.read(input) < 0) {
+                throw new EOFException();
+            }
+            input.flip();
+            if (!greeted && input.remaining() >= HELLO_BYTES) {
+                long followerSession = input.getLong();
+                long followerVersion = input.getLong();
+                int headId = input.getInt();
+                // A follower that already holds part of this session's history resumes
+                // from its newest commit instead of starting over
+                if (followerSession == session && followerVersion == repository.rewriteCount()) {
+                    synced = true;
+                    version = followerVersion;
+                    sentId = (headId < 0) ? null : "" + headId;
+                }
+                greeted = true;
+            }
+            while (greeted && input.remaining() >= ACK_BYTES) {
+                acknowledged = Math.max(acknowledged, input.getInt());
+            }
+            input.compact();
+        }
+
+        // Writes as much of the current batch as the connection takes.
+        void write() throws IOException {
+            channel.write(pending);
+            if (!pending.hasRemaining()) {
+                pending = null;
+            }
+        }
+
+        // Prepares the next batch if the previous one has been written, the window has
+        // room, and there is something to send.
+        void fill() {
+            if (!greeted || pending != null || nextSequence - acknowledged > window) {
+                return;
+            }
+            if (queued.isEmpty() && !queuedReset) {
+                collect();
+            }
+            if (!queued.isEmpty() || queuedReset) {
+                pending = encode();
+            }
+        }
+
+        // Queues the commits in front of the newest one sent, or the whole history if the
+        // follower's history can no longer be extended.
+        private void collect() {
+            long current = repository.rewriteCount();
+            boolean reset = !synced || current != version;
+            Deque<Repository.Commit> delta = new ArrayDeque<>();
+            boolean found = reset || sentId == null;
+            Iterator<Repository.Commit> history = repository.historyIterator();
+            while (history.hasNext()) {
+                Repository.Commit commit = history.next();
+                if (!reset && commit.id.equals(sentId)) {
+                    found = true;
+                    break;
+                }
+                delta.addFirst(commit);
+            }
+            // The newest commit sent is gone, so the whole history was walked anyway
+            reset |= !found;
+            if (delta.isEmpty() && !reset) {
+                return;
+            }
+            queued.addAll(delta);
+            queuedReset = reset;
+            sentId = delta.isEmpty() ? null : delta.getLast().id;
+            version = current;
+            synced = true;
+        }
+
+        // Encodes and compresses the next batch of queued commits.
+        private ByteBuffer encode() {
+            raw.clear();
+            int count = 0;
+            while (count < batchSize && !queued.isEmpty()) {
+                Repository.Commit commit = queued.poll();
+                String text = commit.getMessage();
+                byte[] message = (text == null) ? null
+                        : text.getBytes(StandardCharsets.UTF_8);
+                int length = (message == null) ? 0 : message.length;
+                if (raw.remaining() < 16 + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(
+                            Math.max(raw.capacity() * 2, raw.position() + 16 + length));
+                    raw.flip();
+                    raw = larger.put(raw);
+                }
+                raw.putInt(Integer.parseInt(commit.id));
+                raw.putLong(commit.timeStamp);
+                raw.putInt((message == null) ? -1 : length);
+                if (message != null) {
+                    raw.put(message);
+                }
+                count++;
+            }
+
+            deflater.reset();
+            deflater.setInput(raw.array(), 0, raw.position());
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength,
+                        compressed.length - compressedLength);
+            }
+
+            ByteBuffer frame = ByteBuffer.allocate(4 + BATCH_HEADER_BYTES + compressedLength);
+            frame.putInt(BATCH_HEADER_BYTES + compressedLength);
+            frame.putInt(nextSequence++);
+            frame.put(queuedReset ? RESET : 0);
+            frame.putLong(session);
+            frame.putLong(version);
+            frame.putInt(count);
+            frame.putInt(raw.position());
+            frame.put(compressed, 0, compressedLength);
+            frame.flip();
+            queuedReset = false;
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Measures replication throughput and lag between a leader and a follower repository in
+ * the same process, connected over loopback. A writer thread commits as fast as it can
+ * while the main thread samples how far the follower's newest commit trails the leader's.
+ *
+ * Usage: java ReplicationLoadTest [commits] [batch size] [window]
+ */
+public class ReplicationLoadTest {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int commits = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        int batchSize = (args.length > 1) ? Integer.parseInt(args[1])
+                : ReplicationLeader.DEFAULT_BATCH_SIZE;
+        int window = (args.length > 2) ? Integer.parseInt(args[2])
+                : ReplicationLeader.DEFAULT_WINDOW;
+
+        Repository primary = Repository.concurrent("primary");
+        Repository replica = new Repository("replica");
+        ReplicationLeader leader = ReplicationLeader.start(primary, 0, batchSize, window);
+        ReplicationFollower follower = ReplicationFollower.connect(replica, leader.getAddress());
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < commits; i++) {
+                primary.commit("load test commit " + i);
+            }
+        });
+        long start = System.nanoTime();
+        writer.start();
+
+        // Sample the lag as the difference between the newest timestamps on both sides,
+        // counting from the leader's oldest commit while the follower has nothing yet
+        List<Long> lags = new ArrayList<>();
+        while (writer.isAlive()) {
+            long newest = primary.getNewestTimeStamp();
+            long replicated = replica.getNewestTimeStamp();
+            if (replicated < 0) {
+                replicated = primary.getOldestTimeStamp();
+            }
+            if (newest >= 0) {
+                lags.add(Math.max(0, newest - replicated));
+            }
+            Thread.sleep(1);
+        }
+        long written = System.nanoTime();
+        while (follower.getReceivedCommits() < commits && follower.getFailure() == null) {
+            Thread.sleep(1);
+        }
+        long caughtUp = System.nanoTime();
+
+        // A reconnecting follower should only be sent what it missed
+        follower.close();
+        for (int i = 0; i < 1000; i++) {
+            primary.commit("missed commit " + i);
+        }
+        long reconnectStart = System.nanoTime();
+        ReplicationFollower resumed = follower.reconnect();
+        while (resumed.getReceivedCommits() < 1000 && resumed.getFailure() == null) {
+            Thread.sleep(1);
+        }
+        long reconnected = System.nanoTime();
+
+        Collections.sort(lags);
+        double seconds = (caughtUp - start) / 1e9;
+        System.out.printf("Commits:            %d (batch size %d, window %d)%n",
+                commits, batchSize, window);
+        System.out.printf("Commit time:        %.1f ms%n", (written - start) / 1e6);
+        System.out.printf("Catch-up after:     %.1f ms%n", (caughtUp - written) / 1e6);
+        System.out.printf("Throughput:         %.0f commits/s%n", commits / seconds);
+        System.out.printf("Compressed:         %.1f bytes/commit%n",
+                (double) follower.getReceivedBytes() / commits);
+        if (!lags.isEmpty()) {
+            System.out.printf("Lag p50/p99/max:    %d / %d / %d ms%n",
+                    lags.get(lags.size() / 2), lags.get((int) (lags.size() * 0.99)),
+                    lags.get(lags.size() - 1));
+        }
+        System.out.printf("Reconnect catch-up: %d commits in %.1f ms%n",
+                resumed.getReceivedCommits(), (reconnected - reconnectStart) / 1e6);
+        System.out.println("Replica matches:    "
+                + primary.getHistory(10).equals(replica.getHistory(10))
+                + ", sizes " + primary.getRepoSize() + " / " + replica.getRepoSize());
+
+        resumed.close();
+        leader.close();
+    }
+}
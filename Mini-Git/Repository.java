@@ -5,16 +5,81 @@
 // TA: Benoit Le
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 
 /**
  * The Repository class represents a version control repository that manages a series of commits.
  * It allows for operations such as committing changes, checking the size of the repository,
  * and synchronizing with other repositories to merge their commit histories.
+ * Repositories created with concurrent(String) may be shared between threads, and any
+ * repository can hand out snapshots that stay consistent while it changes.
  */
-public class Repository {
+public class Repository implements CommitRepository<Repository> {
     private String name;  // The name of the repository
-    private Commit head;  // The head commit of the repository's commit chain
+
+    // The commit chain and its statistics. Every operation publishes a new State instead of
+    // changing fields one at a time, so a reader that loads it once sees a consistent view.
+    private volatile State state = State.EMPTY;
+    private static final AtomicReferenceFieldUpdater<Repository, State> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(Repository.class, State.class, "state");
+
+    // true if drop and synchronize must copy commits instead of relinking them in place,
+    // which keeps every published chain intact for concurrent readers and for branches
+    // that share commits with this repository
+    private volatile boolean copyOnWrite;
+
+    // The number of open snapshots. While any are open, writers copy commits the same way
+    // they do in copy-on-write mode, so the versions the snapshots hold never change.
+    private final AtomicInteger pins = new AtomicInteger();
+
+    // The number of commits at which synchronizeAll merges in parallel
+    private static final int PARALLEL_MERGE_THRESHOLD = 1 << 16;
+
+    // How far synchronize looks ahead through commits with tied timestamps for a commit
+    // that both histories share
+    private static final int TIE_SCAN_LIMIT = 32;
+
+    // The first eight bytes of every export, and the size of the buffer it is streamed
+    // through
+    private static final long EXPORT_MAGIC = 0x4D696E6947697445L;
+    private static final int EXPORT_BUFFER_BYTES = 256 << 10;
+
+    private CommitLog log;                  // The durable log of this repository, or null
+    private volatile boolean loaded = true; // false until a reopened log has been replayed
+    private volatile TimeIndex timeIndex;   // The index of commits by timestamp, or null
+    private volatile MessageIndex messageIndex; // The index of commit message words, or null
+    private volatile Tombstones tombstones; // The dropped commits not yet unlinked, or null
+    private volatile MetricsSink metrics;   // Receives operation measurements, or null
+    private volatile MessageStore messages; // Holds the messages of new commits, or null
+
+    // Where the last page handed out by getHistoryPage stopped, or null
+    private volatile PageCursor pageCursor;
+
+    // Set for good before a log, index or tombstones are attached, from then on making
+    // writers take turns on this repository's lock. Lock-free writers check it after
+    // reading the state they mean to replace, and give up to take their turn if it is set.
+    private volatile boolean serial;
+
+    // The repository that commits belonging to no history are made in, since every
+    // Commit needs one. Nothing is ever committed to it.
+    private static final Repository DETACHED = new Repository("detached");
+
+    // Counts the operations that removed commits or inserted them below the head. Lets a
+    // replication leader tell whether the commits in front of a follower's last commit
+    // are still all that changed.
+    private final AtomicLong rewrites = new AtomicLong();
 
     /**
      * Constructs a new repository with the given name.
@@ -25,178 +90,2213 @@ public class Repository {
         if (name == null || name.isEmpty()) {
             throw new IllegalArgumentException();
         }
-        this.name = name;
+        this.name = name;
+    }
+
+    /**
+     * Constructs a new repository that is safe to use from many threads at once. Commits
+     * are lock-free pushes onto the head, and drop and synchronize never modify a commit
+     * that a reader may be walking, so every read sees a consistent history. If the
+     * repository also has a durable log or an index, writers take turns so those record
+     * operations in the same order as the history.
+     * @param name The name of the repository.
+     * @return The new repository.
+     * @throws IllegalArgumentException If the name is null or empty.
+     */
+    public static Repository concurrent(String name) {
+        Repository repo = new Repository(name);
+        repo.copyOnWrite = true;
+        return repo;
+    }
+
+    /**
+     * Creates a new repository with the given name that starts out with the same history
+     * as this one. Takes constant time: the two repositories share their commits, and
+     * later drops and synchronizes on either one copy only the commits in front of the
+     * change, so memory grows with the differences between branches rather than with
+     * their number. From now on both repositories work in copy-on-write mode. The branch
+     * does not share this repository's durable log or indexes.
+     * @param name The name of the new branch.
+     * @return The new branch.
+     * @throws IllegalArgumentException If the name is null or empty.
+     */
+    public Repository branch(String name) {
+        ensureLoaded();
+        Repository branch = new Repository(name);
+        synchronized (this) {
+            // The branch must not share commits that are only dead in this repository
+            compactTombstones();
+            branch.copyOnWrite = true;
+            copyOnWrite = true;
+            branch.state = state;
+        }
+        return branch;
+    }
+
+    /**
+     * Opens a persistent repository whose operations are appended to a durable log in the
+     * given directory, creating the log if it does not exist. Opening only recovers the end
+     * of the log, so it takes about the same time however long the log is. Only the
+     * statistics are lazy: getRepoSize, getRepoHead, the timestamp queries and
+     * getTotalMessageBytes are answered from the summary at the end of the log, and
+     * commit only appends to it. Anything else that reads or changes the history, such as
+     * getHistory, contains, historyIterator or drop, first replays the whole log, once,
+     * which takes time in proportion to every operation the log holds.
+     *
+     * Every write to a persistent repository returns only once its records are forced to
+     * disk, so a write that has returned survives the process or the machine crashing.
+     * Writers on different threads that finish at the same time share one force. A crash
+     * partway through a write loses the whole write.
+     * @param name The name of the repository.
+     * @param directory The directory holding the repository's log.
+     * @return The opened repository.
+     * @throws IOException If the log cannot be opened.
+     * @throws IllegalArgumentException If the name is null or empty.
+     */
+    public static Repository open(String name, Path directory) throws IOException {
+        Repository repo = new Repository(name);
+        repo.log = CommitLog.open(directory);
+        repo.serial = true;
+        repo.loaded = false;
+        Commit.reserveIds(repo.log.nextCommitId());
+        return repo;
+    }
+
+    /**
+     * Syncs and closes this repository's durable log. Does nothing for an in-memory
+     * repository.
+     * @throws IOException If the log cannot be written.
+     */
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * Creates a new commit with the given message and adds it to the repository as the new head.
+     * For a persistent repository, returns only once the commit is forced to disk.
+     * @param message The commit message.
+     * @return The ID of the newly created commit.
+     */
+    public String commit(String message) {
+        MetricsSink sink = metrics;
+        long start = (sink != null) ? System.nanoTime() : 0;
+        Commit pushed = serialWrites() ? null : push(message, true);
+        String id;
+        if (pushed != null) {
+            id = pushed.id;
+        } else {
+            synchronized (this) {
+                if (!loaded) {
+                    id = commitUnloaded(message);
+                } else {
+                    Commit commit = push(message, false);
+                    committed(commit);
+                    id = commit.id;
+                }
+            }
+            awaitLog();
+        }
+        if (sink != null) {
+            sink.record(MetricsSink.Operation.COMMIT, System.nanoTime() - start, 1);
+        }
+        return id;
+    }
+
+    // Pushes a new commit onto the head with a compare-and-set, retrying if another thread
+    // moved the head first. A retry takes a fresh timestamp, so the history stays ordered
+    // newest first, but keeps the ID it was given the first time. A lock-free push gives
+    // up and returns null once writers have to take turns.
+    private Commit push(String message, boolean lockFree) {
+        Commit commit = null;
+        while (true) {
+            State current = state;
+            if (lockFree && serial) {
+                return null;
+            }
+            commit = (commit == null) ? new Commit(message, current.head)
+                    : new Commit(commit.id, System.currentTimeMillis(), commit.kept(),
+                            current.head);
+            if (STATE.compareAndSet(this, current, current.push(commit))) {
+                return commit;
+            }
+        }
+    }
+
+    // Makes a commit before the history has been read back from the durable log. The
+    // commit only goes to the log, which the history is later rebuilt from, along with
+    // the summary the constant-time queries answer from until then. Must hold this
+    // repository's lock.
+    private String commitUnloaded(String message) {
+        CommitLog.Summary before = log.summary();
+        // Not put in the message store, since only the log keeps this commit
+        Commit commit = new Commit("" + Commit.allocateId(), System.currentTimeMillis(),
+                message, null);
+        long oldestTimeStamp = (before.size == 0) ? commit.timeStamp : before.oldestTimeStamp;
+        CommitLog.Summary after = new CommitLog.Summary(before.size + 1, commit.id,
+                commit.timeStamp, oldestTimeStamp, before.totalMessageBytes + messageBytes(commit));
+        try {
+            log.appendCommit(commit, after);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return commit.id;
+    }
+
+    /**
+     * Retrieves the ID of the current head commit of the repository.
+     * @return The ID of the head commit, or null if the repository is empty.
+     */
+    public String getRepoHead() {
+        CommitLog.Summary unloaded = unloadedSummary();
+        if (unloaded != null) {
+            return unloaded.headId;
+        }
+        Commit head = skipDead(state.head);
+        return (head != null) ? head.id : null;
+    }
+
+    /**
+     * Returns the total number of commits in the repository. Runs in constant time.
+     * @return The total number of commits.
+     */
+    public int getRepoSize() {
+        CommitLog.Summary unloaded = unloadedSummary();
+        if (unloaded != null) {
+            return unloaded.size;
+        }
+        return state.size;
+    }
+
+    /**
+     * Returns the timestamp of the newest commit in the repository. Runs in constant time.
+     * @return The newest timestamp in milliseconds, or -1 if the repository is empty.
+     */
+    public long getNewestTimeStamp() {
+        CommitLog.Summary unloaded = unloadedSummary();
+        if (unloaded != null) {
+            return unloaded.headTimeStamp;
+        }
+        Commit head = skipDead(state.head);
+        return (head != null) ? head.timeStamp : -1;
+    }
+
+    /**
+     * Returns the timestamp of the oldest commit in the repository. Runs in constant time.
+     * @return The oldest timestamp in milliseconds, or -1 if the repository is empty.
+     */
+    public long getOldestTimeStamp() {
+        CommitLog.Summary unloaded = unloadedSummary();
+        if (unloaded != null) {
+            return unloaded.oldestTimeStamp;
+        }
+        State current = state;
+        return (current.head != null) ? current.oldestTimeStamp : -1;
+    }
+
+    /**
+     * Returns the combined size of every commit message in the repository, measured in
+     * UTF-8 bytes. Runs in constant time.
+     * @return The total number of message bytes.
+     */
+    public long getTotalMessageBytes() {
+        CommitLog.Summary unloaded = unloadedSummary();
+        if (unloaded != null) {
+            return unloaded.totalMessageBytes;
+        }
+        return state.totalMessageBytes;
+    }
+
+    // Returns the durable log's summary of the history while the history has not been read
+    // back from the log yet, or null once it has.
+    private CommitLog.Summary unloadedSummary() {
+        return loaded ? null : log.summary();
+    }
+
+    /**
+     * Provides a string representation of the repository, showing its name and current head commit.
+     * @return A string detailing the repository's name and head commit.
+     */
+    @Override
+    public String toString() {
+        ensureLoaded();
+        Commit head = skipDead(state.head);
+        return name + (head == null ? " - No commits" : " - Current head: " + head);
+    }
+
+    /**
+     * Checks if a commit with the specified ID exists within the repository.
+     * @param targetId The ID of the commit to search for.
+     * @return true if the commit exists, false otherwise.
+     */
+    public boolean contains(String targetId) {
+        MetricsSink sink = metrics;
+        long start = (sink != null) ? System.nanoTime() : 0;
+        ensureLoaded();
+        boolean found = false;
+        int visited = 0;
+        Commit c = state.head;
+        while (c != null) {
+            visited++;
+            if (c.id.equals(targetId)) {
+                found = !isDead(c);
+                break;
+            }
+            c = c.past;
+        }
+        if (sink != null) {
+            sink.record(MetricsSink.Operation.CONTAINS, System.nanoTime() - start, visited);
+        }
+        return found;
+    }
+
+    /**
+     * Removes a commit with the specified ID from the repository, if it exists.
+     * @param targetId The ID of the commit to remove.
+     * @return true if the commit was removed successfully, false if no such commit exists.
+     */
+    public boolean drop(String targetId) {
+        MetricsSink sink = metrics;
+        long start = (sink != null) ? System.nanoTime() : 0;
+        Walk walk = (sink != null) ? new Walk() : null;
+        ensureLoaded();
+        int unlinked = serialWrites() ? -1
+                : removeAll(Collections.singleton(targetId), null, walk, true);
+        boolean removed;
+        if (unlinked >= 0) {
+            removed = unlinked > 0;
+        } else {
+            synchronized (this) {
+                if (tombstones != null) {
+                    removed = mark(targetId);
+                } else {
+                    Commit commit = remove(targetId, walk);
+                    if (commit != null) {
+                        dropped(List.of(commit));
+                    }
+                    removed = commit != null;
+                }
+            }
+            awaitLog();
+        }
+        if (sink != null) {
+            sink.record(MetricsSink.Operation.DROP, System.nanoTime() - start, walk.nodes);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every commit whose ID is in the given collection, walking the history once
+     * instead of once per ID. The walk stops as soon as every ID has been found. IDs that
+     * do not match any commit are ignored.
+     * @param targetIds The IDs of the commits to remove.
+     * @return The number of commits removed.
+     */
+    public int dropAll(Collection<String> targetIds) {
+        MetricsSink sink = metrics;
+        long start = (sink != null) ? System.nanoTime() : 0;
+        Walk walk = (sink != null) ? new Walk() : null;
+        ensureLoaded();
+        int removed = dropIds(new HashSet<>(targetIds), walk);
+        awaitLog();
+        if (sink != null) {
+            sink.record(MetricsSink.Operation.DROP, System.nanoTime() - start, walk.nodes);
+        }
+        return removed;
+    }
+
+    // Removes every commit whose ID is in 'ids' for dropAll and returns the number
+    // removed. The commits walked over are counted in 'walk' unless it is null.
+    private int dropIds(Set<String> ids, Walk walk) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        if (!serialWrites()) {
+            int unlinked = removeAll(ids, null, walk, true);
+            if (unlinked >= 0) {
+                return unlinked;
+            }
+        }
+        synchronized (this) {
+            if (tombstones != null) {
+                int count = 0;
+                for (String id : ids) {
+                    if (mark(id)) {
+                        count++;
+                    }
+                }
+                if (walk != null) {
+                    walk.nodes += count;    // Marking finds each commit without a walk
+                }
+                return count;
+            }
+            List<Commit> removed = new ArrayList<>();
+            removeAll(ids, removed, walk, false);
+            if (!removed.isEmpty()) {
+                dropped(removed);
+            }
+            return removed.size();
+        }
+    }
+
+    /**
+     * Switches this repository to tombstone mode. A drop then only marks the commit as
+     * dead in constant time, and the dead commits are unlinked later, all in one pass,
+     * either by compact() or automatically once they outnumber the live commits. History,
+     * size and contains skip dead commits, so the marks are never visible. While in this
+     * mode writers take turns instead of committing lock-free; a lock-free write already
+     * under way when this is called either lands before the marks are taken or starts
+     * over taking its turn. Does nothing if the repository is already in tombstone mode.
+     */
+    public void enableTombstones() {
+        ensureLoaded();
+        synchronized (this) {
+            if (tombstones == null) {
+                startSerialWrites();
+                Tombstones marks = new Tombstones();
+                for (Commit c = state.head; c != null; c = c.past) {
+                    marks.add(c);
+                }
+                tombstones = marks;
+            }
+        }
+    }
+
+    /**
+     * Unlinks every commit that was dropped in tombstone mode. Does nothing outside of
+     * tombstone mode.
+     * @return The number of dead commits unlinked.
+     */
+    public int compact() {
+        ensureLoaded();
+        synchronized (this) {
+            return compactTombstones();
+        }
+    }
+
+    /**
+     * Attaches a sink that receives the latency and the number of commits walked over for
+     * every commit, drop, contains, getHistory and synchronize on this repository, or
+     * detaches the current one. dropAll is recorded as a drop, and synchronizeAll and
+     * importHistory as a synchronize. Without a sink, the only cost is checking for one.
+     * @param sink The sink to attach, or null to stop measuring.
+     */
+    public void setMetricsSink(MetricsSink sink) {
+        metrics = sink;
+    }
+
+    // Marks the commit with the given ID as dead and publishes the smaller statistics.
+    // Must hold this repository's lock. If the commit may have been the oldest one, the
+    // chain is compacted right away so the oldest timestamp stays exact.
+    private boolean mark(String targetId) {
+        Commit target = tombstones.mark(targetId);
+        if (target == null) {
+            return false;
+        }
+        State current = state;
+        State next = new State(current.head, current.size - 1, current.oldestTimeStamp,
+                current.totalMessageBytes - messageBytes(target));
+        state = next;
+        rewrites.incrementAndGet();
+        dropped(List.of(target));
+        if (target.timeStamp == current.oldestTimeStamp
+                || tombstones.deadCount() > next.size) {
+            compactTombstones();
+        }
+        return true;
+    }
+
+    // Unlinks the dead commits of tombstone mode. Must hold this repository's lock.
+    // Returns the number of commits unlinked.
+    private int compactTombstones() {
+        if (tombstones == null || tombstones.deadCount() == 0) {
+            return 0;
+        }
+        Set<String> ids = tombstones.deadIds();
+        state = unlink(state, ids, false, null, null);
+        refreshTimeIndex();
+        // Forget the marks only after the commits are gone, so readers never see them
+        tombstones.forget(ids);
+        return ids.size();
+    }
+
+    // Unlinks the commit with the given ID and publishes the resulting state. In
+    // copy-on-write mode the commits in front of it are copied rather than relinked. Returns the removed
+    // commit, or null if no such commit exists. The commits walked over are counted in
+    // 'walk' unless it is null.
+    private Commit remove(String targetId, Walk walk) {
+        while (true) {
+            State current = state;
+            Commit previous = null;
+            Commit target = current.head;
+            int visited = 0;
+            while (target != null && !target.id.equals(targetId)) {
+                previous = target;
+                target = target.past;
+                visited++;
+            }
+            if (walk != null) {
+                walk.nodes += (target != null) ? visited + 1 : visited;
+            }
+            if (target == null) {
+                return null;
+            }
+
+            long oldestTimeStamp = current.oldestTimeStamp;
+            if (target.past == null) {
+                oldestTimeStamp = (previous != null) ? previous.timeStamp : 0;
+            }
+            Commit newHead;
+            if (copying()) {
+                newHead = copyPrefix(current.head, target, target.past);
+            } else if (previous == null) {
+                newHead = target.past;
+            } else {
+                previous.past = target.past;
+                newHead = current.head;
+            }
+            State next = new State(newHead, current.size - 1, oldestTimeStamp,
+                    current.totalMessageBytes - messageBytes(target));
+            if (STATE.compareAndSet(this, current, next)) {
+                rewrites.incrementAndGet();
+                return target;
+            }
+        }
+    }
+
+    // Unlinks every commit whose ID is in 'ids' and publishes the resulting state. The
+    // removed commits are added to 'removed' unless it is null. Returns the number of
+    // commits removed, or -1 if it is lock-free and gave up because writers have to take
+    // turns. The commits walked over are counted in 'walk' unless it is null.
+    private int removeAll(Set<String> ids, List<Commit> removed, Walk walk,
+            boolean lockFree) {
+        while (true) {
+            State current = state;
+            if (lockFree && serial) {
+                return -1;
+            }
+            List<Commit> unlinked = new ArrayList<>();
+            State next = unlink(current, ids, true, unlinked, walk);
+            if (unlinked.isEmpty()) {
+                return 0;
+            }
+            if (STATE.compareAndSet(this, current, next)) {
+                rewrites.incrementAndGet();
+                if (removed != null) {
+                    removed.addAll(unlinked);
+                }
+                return unlinked.size();
+            }
+        }
+    }
+
+    // Returns the state left after unlinking every commit whose ID is in 'ids' from the
+    // chain of 'current', in one walk that stops once every ID has been found. Only the
+    // commits in front of the last unlinked one are relinked, or copied in copy-on-write
+    // mode. If 'subtract' is false the statistics already leave out the unlinked commits.
+    // The unlinked commits are added to 'removed' unless it is null, and the commits
+    // walked over are counted in 'walk' unless it is null.
+    private State unlink(State current, Set<String> ids, boolean subtract,
+            List<Commit> removed, Walk walk) {
+        List<Commit> kept = new ArrayList<>();
+        int keptCount = 0;      // The number of kept commits in front of 'rest'
+        Commit rest = current.head;
+        int count = 0;
+        long bytes = 0;
+        boolean tailRemoved = false;
+        for (Commit c = current.head; c != null && count < ids.size(); c = c.past) {
+            if (walk != null) {
+                walk.nodes++;
+            }
+            if (!ids.contains(c.id)) {
+                kept.add(c);
+                continue;
+            }
+            count++;
+            bytes += messageBytes(c);
+            if (removed != null) {
+                removed.add(c);
+            }
+            rest = c.past;
+            keptCount = kept.size();
+            tailRemoved = c.past == null;
+        }
+        if (count == 0) {
+            return current;
+        }
+
+        Commit newHead = rest;
+        boolean copy = copying();
+        for (int i = keptCount - 1; i >= 0; i--) {
+            Commit c = kept.get(i);
+            if (copy) {
+                c = new Commit(c.id, c.timeStamp, c.kept(), newHead);
+            } else {
+                c.past = newHead;
+            }
+            newHead = c;
+        }
+        long oldestTimeStamp = current.oldestTimeStamp;
+        if (tailRemoved) {
+            oldestTimeStamp = (keptCount > 0) ? kept.get(keptCount - 1).timeStamp : 0;
+        }
+        return subtract
+                ? new State(newHead, current.size - count, oldestTimeStamp,
+                        current.totalMessageBytes - bytes)
+                : new State(newHead, current.size, oldestTimeStamp, current.totalMessageBytes);
+    }
+
+    // Returns the first commit at or after 'commit' that is not dead in tombstone mode.
+    private Commit skipDead(Commit commit) {
+        Tombstones marks = tombstones;
+        return (marks == null) ? commit : marks.skip(commit);
+    }
+
+    // Returns true if the given commit was dropped in tombstone mode but not yet unlinked.
+    private boolean isDead(Commit commit) {
+        Tombstones marks = tombstones;
+        return marks != null && marks.isDead(commit.id);
+    }
+
+    // Returns a copy of the commits from 'head' up to, but not including, 'stop', with the
+    // last copy pointing at 'rest'. The original commits are left untouched.
+    private Commit copyPrefix(Commit head, Commit stop, Commit rest) {
+        Commit newHead = rest;
+        Commit last = null;
+        for (Commit c = head; c != stop; c = c.past) {
+            Commit copy = new Commit(c.id, c.timeStamp, c.kept(), rest);
+            if (last == null) {
+                newHead = copy;
+            } else {
+                last.past = copy;
+            }
+            last = copy;
+        }
+        return newHead;
+    }
+
+    // Returns the number of UTF-8 bytes in the given commit's message.
+    private static long messageBytes(Commit commit) {
+        return MessageStore.utf8Length(commit.kept());
+    }
+
+    /**
+    * Retrieves a history of commit messages up to a specified number from the head,
+    * formatted as a string. If the specified number exceeds the actual number of commits
+    * in the repository, it returns as many commit messages as available in the repository.
+    * @param n The number of commit messages to retrieve.
+    * @return A string containing the most recent 'n'
+    * commit messages, or fewer if the repository size is smaller than 'n'.
+    * @throws IllegalArgumentException If 'n' is less than or equal to zero.
+     */
+    public String getHistory(int n) {
+        if (n <= 0) throw new IllegalArgumentException();
+        MetricsSink sink = metrics;
+        long start = (sink != null) ? System.nanoTime() : 0;
+        StringBuilder history = new StringBuilder();
+        int visited;
+        try {
+            visited = appendHistory(n, history);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // StringBuilder never throws
+        }
+        String result = history.toString().trim();
+        if (sink != null) {
+            sink.record(MetricsSink.Operation.HISTORY, System.nanoTime() - start, visited);
+        }
+        return result;
+    }
+
+    /**
+     * Writes up to 'n' of the most recent commits to the given output, newest first, one
+     * commit per line in the same form as getHistory. Nothing is buffered besides the
+     * output itself, so memory use does not depend on 'n'.
+     * @param n The number of commits to write.
+     * @param out The destination for the history.
+     * @throws IOException If writing to 'out' fails.
+     * @throws IllegalArgumentException If 'n' is less than or equal to zero.
+     */
+    public void writeHistory(int n, Appendable out) throws IOException {
+        if (n <= 0) throw new IllegalArgumentException();
+        appendHistory(n, out);
+    }
+
+    // Writes up to 'n' of the most recent commits to 'out' and returns how many were
+    // written.
+    private int appendHistory(int n, Appendable out) throws IOException {
+        ensureLoaded();
+        Commit head = skipDead(state.head);
+        Commit current = head;
+        int written = 0;
+        while (current != null && written < n) {
+            if (current != head) {
+                out.append('\n');
+            }
+            current.appendTo(out);
+            current = skipDead(current.past);
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Returns an iterator over every commit in the repository, newest first. Commits are
+     * visited lazily as the iterator advances.
+     * @return An iterator starting at the head commit.
+     */
+    public Iterator<Commit> historyIterator() {
+        ensureLoaded();
+        return new HistoryIterator(state.head);
+    }
+
+    /**
+     * Returns an iterator over the commits starting at the commit with the given ID and
+     * continuing toward the oldest commit.
+     * @param fromId The ID of the first commit to return.
+     * @return An iterator starting at the given commit.
+     * @throws IllegalArgumentException If no commit with the given ID exists.
+     */
+    public Iterator<Commit> historyIterator(String fromId) {
+        ensureLoaded();
+        return new HistoryIterator(find(state.head, fromId));
+    }
+
+    /**
+     * Returns a lazily evaluated, sequential stream of every commit, newest first.
+     * @return A stream over the repository's history.
+     */
+    public Stream<Commit> streamHistory() {
+        ensureLoaded();
+        State current = state;
+        return StreamSupport.stream(Spliterators.spliterator(new HistoryIterator(current.head),
+                current.size, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Returns one page of history. Pass a null token to start at the head commit, and the
+     * returned page's next token to continue where the previous page stopped.
+     *
+     * A token holds the ID and timestamp of the commit its page starts at. With the time
+     * index enabled it is found by binary search. Otherwise the repository remembers
+     * where the last page it handed out stopped, so reading the pages in order costs
+     * O(pageSize) per page as long as no commits are removed or merged in meanwhile. Any
+     * other token is found by walking from the head, which costs time in proportion to
+     * how far into the history its page starts. A commit ID also works as a token.
+     * @param pageToken The token of a previous page, or null for the first page.
+     * @param pageSize The maximum number of commits in the page.
+     * @return The requested page of commits.
+     * @throws IllegalArgumentException If 'pageSize' is less than or equal to zero, or the
+     *                                  token refers to a commit that no longer exists.
+     */
+    public HistoryPage getHistoryPage(String pageToken, int pageSize) {
+        if (pageSize <= 0) throw new IllegalArgumentException();
+        ensureLoaded();
+        // Read before the state, so a cursor is never tied to a newer count than its chain
+        long version = rewrites.get();
+        State snapshot = state;
+        Commit current = (pageToken == null) ? skipDead(snapshot.head)
+                : findPage(snapshot, pageToken, version);
+        List<Commit> commits = new ArrayList<>(Math.min(pageSize, snapshot.size));
+        while (current != null && commits.size() < pageSize) {
+            commits.add(current);
+            current = skipDead(current.past);
+        }
+        String nextToken = null;
+        if (current != null) {
+            nextToken = current.id + "@" + current.timeStamp;
+            pageCursor = new PageCursor(nextToken, current, version);
+        }
+        return new HistoryPage(commits, nextToken);
+    }
+
+    // Returns the commit a page token starts at, in the chain of 'snapshot', which was
+    // read when the rewrite count was 'version'. Throws an IllegalArgumentException if
+    // there is no such commit.
+    private Commit findPage(State snapshot, String pageToken, long version) {
+        PageCursor cursor = pageCursor;
+        if (cursor != null && cursor.version == version && cursor.token.equals(pageToken)) {
+            // Nothing was removed or merged in since, so the commit is still in the history
+            return cursor.next;
+        }
+        int at = pageToken.indexOf('@');
+        String id = (at < 0) ? pageToken : pageToken.substring(0, at);
+        TimeIndex index = timeIndex;
+        if (index != null && at >= 0) {
+            Commit commit = index.get(id, Long.parseLong(pageToken.substring(at + 1)));
+            if (commit == null) {
+                throw new IllegalArgumentException("No commit with ID " + id);
+            }
+            return commit;
+        }
+        return find(snapshot.head, id);
+    }
+
+    // Returns a commit with the given ID, timestamp and message that is not part of any
+    // history. Used by ColumnarRepository, which keeps no Commit objects, to hand out the
+    // commits of its history.
+    static Commit detachedCommit(String id, long timeStamp, String message) {
+        return DETACHED.new Commit(id, timeStamp, message, null);
+    }
+
+    // Returns the commit with the given ID in the chain starting at 'head'.
+    // Throws an IllegalArgumentException if no such commit exists.
+    private Commit find(Commit head, String targetId) {
+        Commit current = head;
+        while (current != null) {
+            if (current.id.equals(targetId) && !isDead(current)) {
+                return current;
+            }
+            current = current.past;
+        }
+        throw new IllegalArgumentException("No commit with ID " + targetId);
+    }
+
+    /**
+     * Pins the current version of the repository for reading. The snapshot keeps showing
+     * exactly this version, however the repository changes afterwards, and it may be read
+     * from any thread while writers carry on without waiting for it. While any snapshot is
+     * open, drop and synchronize copy the commits in front of each change instead of
+     * relinking them in place. Once every snapshot is closed, or no longer referenced,
+     * writers go back to relinking in place and the old versions are garbage collected.
+     *
+     * A repository not created with concurrent(String) must be snapshotted by the thread
+     * that writes to it, or with writes otherwise held off.
+     * @return A snapshot of the current version.
+     */
+    public Snapshot snapshot() {
+        ensureLoaded();
+        pins.incrementAndGet();
+        if (tombstones == null) {
+            return new Snapshot(state, null);
+        }
+        // The dead commits must be read together with the chain they are linked into
+        synchronized (this) {
+            return new Snapshot(state, tombstones.deadIds());
+        }
+    }
+
+    /**
+     * Writes every commit to the given file in a compact binary form, newest first,
+     * keeping each commit's ID, timestamp and message. The file is replaced if it exists.
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public void exportHistory(Path file) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            exportHistory(out);
+        }
+    }
+
+    /**
+     * Streams every commit to the given channel in the form read by importHistory, newest
+     * first. Commits are written through a fixed-size buffer, so memory use does not
+     * depend on the size of the history.
+     * @param out The channel to write to.
+     * @throws IOException If writing to the channel fails.
+     */
+    public void exportHistory(WritableByteChannel out) throws IOException {
+        ensureLoaded();
+        ByteBuffer buffer = ByteBuffer.allocate(EXPORT_BUFFER_BYTES);
+        buffer.putLong(EXPORT_MAGIC);
+        long count = 0;
+        for (Commit c = skipDead(state.head); c != null; c = skipDead(c.past)) {
+            String text = c.getMessage();
+            byte[] message = (text == null) ? null : text.getBytes(StandardCharsets.UTF_8);
+            int length = (message == null) ? 0 : message.length;
+            if (buffer.remaining() < 16 + length) {
+                flush(buffer, out);
+            }
+            buffer.putInt(Integer.parseInt(c.id));
+            buffer.putLong(c.timeStamp);
+            buffer.putInt((message == null) ? -1 : length);
+            if (length > buffer.remaining()) {
+                // Too large for the buffer, so the message skips it
+                flush(buffer, out);
+                ByteBuffer large = ByteBuffer.wrap(message);
+                while (large.hasRemaining()) {
+                    out.write(large);
+                }
+            } else if (message != null) {
+                buffer.put(message);
+            }
+            count++;
+        }
+        if (buffer.remaining() < 12) {
+            flush(buffer, out);
+        }
+        buffer.putInt(-1);
+        buffer.putLong(count);
+        flush(buffer, out);
+    }
+
+    /**
+     * Reads commits written by exportHistory from the given file and merges them into
+     * this repository, just as synchronize would.
+     * @param file The file to read.
+     * @throws IOException If the file cannot be read or is not a complete export.
+     */
+    public void importHistory(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            importHistory(in);
+        }
+    }
+
+    /**
+     * Reads commits written by exportHistory from the given channel and merges them into
+     * this repository, just as synchronize would. The commits keep their IDs and
+     * timestamps, and later commits never reuse those IDs. Commits are read through a
+     * fixed-size buffer and linked as they arrive, so apart from the commits themselves,
+     * memory use does not depend on the size of the history.
+     * @param in The channel to read from.
+     * @throws IOException If reading fails or the data is not a complete export.
+     */
+    public void importHistory(ReadableByteChannel in) throws IOException {
+        MetricsSink sink = metrics;
+        long start = (sink != null) ? System.nanoTime() : 0;
+        Walk walk = (sink != null) ? new Walk() : null;
+        ensureLoaded();
+        ByteBuffer buffer = ByteBuffer.allocate(EXPORT_BUFFER_BYTES);
+        buffer.flip();
+        fill(buffer, in, 8);
+        if (buffer.getLong() != EXPORT_MAGIC) {
+            throw new IOException("Not a repository export");
+        }
+
+        Commit head = null;
+        Commit tail = null;
+        int size = 0;
+        long totalMessageBytes = 0;
+        int maxId = -1;
+        while (true) {
+            fill(buffer, in, 4);
+            int id = buffer.getInt();
+            if (id < 0) {
+                fill(buffer, in, 8);
+                if (buffer.getLong() != size) {
+                    throw new IOException("Export is missing commits");
+                }
+                break;
+            }
+            fill(buffer, in, 12);
+            long timeStamp = buffer.getLong();
+            int length = buffer.getInt();
+            String message = null;
+            if (length >= 0) {
+                byte[] bytes;
+                int offset;
+                if (length > buffer.capacity()) {
+                    // Too large for the buffer, so the message is read on its own
+                    bytes = new byte[length];
+                    offset = 0;
+                    int buffered = buffer.remaining();
+                    buffer.get(bytes, 0, buffered);
+                    ByteBuffer rest = ByteBuffer.wrap(bytes, buffered, length - buffered);
+                    while (rest.hasRemaining()) {
+                        if (in.read(rest) < 0) {
+                            throw new EOFException();
+                        }
+                    }
+                } else {
+                    fill(buffer, in, length);
+                    bytes = buffer.array();
+                    offset = buffer.position();
+                    buffer.position(offset + length);
+                }
+                message = new String(bytes, offset, length, StandardCharsets.UTF_8);
+                totalMessageBytes += length;
+            }
+
+            // The export is newest first, so each commit goes on the end of the chain
+            Commit commit = new Commit(Integer.toString(id), timeStamp, storeMessage(message),
+                    null);
+            if (tail == null) {
+                head = commit;
+            } else {
+                tail.past = commit;
+            }
+            tail = commit;
+            size++;
+            maxId = Math.max(maxId, id);
+        }
+        Commit.reserveIds(maxId + 1);
+        if (head != null) {
+            State imported = new State(head, size, tail.timeStamp, totalMessageBytes);
+            if (serialWrites() || !merge(imported, null, walk, true)) {
+                mergeLocked(imported, walk);
+            }
+        }
+        if (sink != null) {
+            // Counts the commits read as well as the ones the merge walked over
+            sink.record(MetricsSink.Operation.SYNCHRONIZE, System.nanoTime() - start,
+                    size + walk.nodes);
+        }
+    }
+
+    // Writes out everything in the buffer and empties it.
+    private static void flush(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Reads from the channel until the buffer holds at least 'n' unread bytes, which must
+    // fit in the buffer. The buffer is left ready for reading.
+    private static void fill(ByteBuffer buffer, ReadableByteChannel in, int n)
+            throws IOException {
+        if (buffer.remaining() >= n) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < n) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("Export ends in the middle of a commit");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Builds an index of this repository's commits by timestamp, which makes the time
+     * queries below O(log n). The index is kept up to date by every later operation. While
+     * it exists, writers take turns instead of committing lock-free, so it is cheapest to
+     * call this before sharing a concurrent repository between threads. Does nothing if
+     * the index already exists.
+     */
+    public void enableTimeIndex() {
+        ensureLoaded();
+        synchronized (this) {
+            if (timeIndex == null) {
+                startSerialWrites();
+                TimeIndex index = new TimeIndex();
+                List<Commit> commits = new ArrayList<>(state.size);
+                historyIterator().forEachRemaining(commits::add);
+                index.merge(commits);
+                timeIndex = index;
+            }
+        }
+    }
+
+    /**
+     * Returns the commits made at or after 'from' and before 'to', newest first. Walks the
+     * whole history unless the time index is enabled.
+     * @param from The earliest timestamp to include, in milliseconds.
+     * @param to The timestamp at which to stop, exclusive, in milliseconds.
+     * @return The commits made in the given range.
+     */
+    public List<Commit> getCommitsBetween(long from, long to) {
+        ensureLoaded();
+        TimeIndex index = timeIndex;
+        if (index != null) {
+            return index.between(from, to);
+        }
+        List<Commit> result = new ArrayList<>();
+        for (Commit c = skipDead(state.head); c != null && c.timeStamp >= from;
+                c = skipDead(c.past)) {
+            if (c.timeStamp < to) {
+                result.add(c);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the newest commit made strictly before the given time. Walks the history
+     * unless the time index is enabled.
+     * @param time The time, in milliseconds.
+     * @return The matching commit, or null if there is none.
+     */
+    public Commit getLatestBefore(long time) {
+        ensureLoaded();
+        TimeIndex index = timeIndex;
+        if (index != null) {
+            return index.latestBefore(time);
+        }
+        Commit c = skipDead(state.head);
+        while (c != null && c.timeStamp >= time) {
+            c = skipDead(c.past);
+        }
+        return c;
+    }
+
+    /**
+     * Returns the oldest commit made strictly after the given time. Walks the history
+     * unless the time index is enabled.
+     * @param time The time, in milliseconds.
+     * @return The matching commit, or null if there is none.
+     */
+    public Commit getEarliestAfter(long time) {
+        ensureLoaded();
+        TimeIndex index = timeIndex;
+        if (index != null) {
+            return index.earliestAfter(time);
+        }
+        Commit result = null;
+        for (Commit c = skipDead(state.head); c != null && c.timeStamp > time;
+                c = skipDead(c.past)) {
+            result = c;
+        }
+        return result;
+    }
+
+    /**
+     * Builds an inverted index from the words of commit messages to commits, which makes
+     * the message searches below avoid walking the history. Words are runs of letters and
+     * digits, compared ignoring case. The index is kept up to date by every later
+     * operation. While it exists, writers take turns instead of committing lock-free, so
+     * it is cheapest to call this before sharing a concurrent repository between threads.
+     * Does nothing if the index already exists.
+     */
+    public void enableMessageIndex() {
+        ensureLoaded();
+        synchronized (this) {
+            if (messageIndex == null) {
+                startSerialWrites();
+                MessageIndex index = new MessageIndex();
+                historyIterator().forEachRemaining(index::add);
+                messageIndex = index;
+            }
+        }
+    }
+
+    /**
+     * Keeps the messages of commits made from now on in a message store instead of one
+     * String per commit. A message that was seen before is shared with the commits that
+     * already have it, and the rest are compressed in blocks and only decompressed when
+     * their text is read, as by getHistory or Commit.getMessage. This saves memory when
+     * messages repeat or resemble each other, at the cost of decompressing on reads of
+     * older commits. Commits already in the repository, and commits merged in from other
+     * repositories, keep their messages as they are, so call this right after creating
+     * or opening the repository. A commit whose message ends up compressed has a null
+     * Commit.message field, so code reading this repository's commits must use
+     * Commit.getMessage(). Without a store every commit keeps its message in the field.
+     * Does nothing if the store already exists.
+     */
+    public void enableMessageStore() {
+        synchronized (this) {
+            if (messages == null) {
+                messages = new MessageStore();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes the message store uses for message text, to compare
+     * with getTotalMessageBytes.
+     * @return The size of the stored text, or 0 if the store is not enabled.
+     */
+    public long getMessageStoreBytes() {
+        MessageStore store = messages;
+        return (store != null) ? store.memoryBytes() : 0;
+    }
+
+    // Returns what a new commit should keep for the given message: the message itself,
+    // or its place in the message store if there is one.
+    private Object storeMessage(String message) {
+        MessageStore store = messages;
+        return (store != null) ? store.store(message) : message;
+    }
+
+    /**
+     * Returns the IDs of the commits whose message contains the given word, newest first.
+     * @param term The word to search for.
+     * @return The IDs of the matching commits.
+     */
+    public List<String> searchMessages(String term) {
+        return searchMessagesAll(term);
+    }
+
+    /**
+     * Returns the IDs of the commits whose message contains all of the given words,
+     * newest first.
+     * @param terms The words to search for.
+     * @return The IDs of the matching commits.
+     */
+    public List<String> searchMessagesAll(String... terms) {
+        ensureLoaded();
+        MessageIndex index = messageIndex;
+        if (index != null) {
+            return (terms.length == 1) ? index.search(terms[0]) : index.searchAll(terms);
+        }
+        List<Commit> matches = new ArrayList<>();
+        for (Commit c = skipDead(state.head); c != null; c = skipDead(c.past)) {
+            Set<String> tokens = MessageIndex.tokenize(c.getMessage());
+            boolean all = terms.length > 0;
+            for (String term : terms) {
+                all &= tokens.contains(term.toLowerCase());
+            }
+            if (all) {
+                matches.add(c);
+            }
+        }
+        return newestFirst(matches);
+    }
+
+    /**
+     * Returns the IDs of the commits whose message contains a word that starts with the
+     * given prefix, newest first.
+     * @param prefix The start of the words to search for.
+     * @return The IDs of the matching commits.
+     */
+    public List<String> searchMessagesPrefix(String prefix) {
+        ensureLoaded();
+        MessageIndex index = messageIndex;
+        if (index != null) {
+            return index.searchPrefix(prefix);
+        }
+        String low = prefix.toLowerCase();
+        List<Commit> matches = new ArrayList<>();
+        for (Commit c = skipDead(state.head); c != null; c = skipDead(c.past)) {
+            for (String token : MessageIndex.tokenize(c.getMessage())) {
+                if (token.startsWith(low)) {
+                    matches.add(c);
+                    break;
+                }
+            }
+        }
+        return newestFirst(matches);
+    }
+
+    /**
+     * Returns an estimate of the heap used by the message index, in bytes.
+     * @return The estimated size of the index, or 0 if it is not enabled.
+     */
+    public long getMessageIndexBytes() {
+        MessageIndex index = messageIndex;
+        return (index != null) ? index.memoryBytes() : 0;
+    }
+
+    // Returns the IDs of the given commits ordered the same way as the message index,
+    // from the highest ID to the lowest.
+    private static List<String> newestFirst(List<Commit> commits) {
+        commits.sort((a, b) -> Integer.compare(Integer.parseInt(b.id), Integer.parseInt(a.id)));
+        List<String> ids = new ArrayList<>(commits.size());
+        for (Commit c : commits) {
+            ids.add(c.id);
+        }
+        return ids;
+    }
+
+    /**
+    * Merges another repository's commit history into this repository, sorting by timestamp.
+    * Ensures all commits from the other repository are integrated in chronological order and
+    * clears the other repository after merging. Handles cases where one or both repositories
+    * might initially be empty.
+    *
+    * If both histories end in the same commits, such as two branches or two replicas of one
+    * repository, the shared commits are kept once and are not walked at all, so the cost
+    * depends only on the commits made since the histories split.
+    *
+    * @param other The repository to merge into this one.
+    */
+    public void synchronize(Repository other) {
+        MetricsSink sink = metrics;
+        long start = (sink != null) ? System.nanoTime() : 0;
+        Walk walk = (sink != null) ? new Walk() : null;
+        ensureLoaded();
+        other.ensureLoaded();
+        if (other.copyOnWrite || other.pins.get() > 0) {
+            // The other repository's commits may be shared with a branch or held by a
+            // snapshot, so this repository must stop relinking commits in place too
+            copyOnWrite = true;
+        }
+        State detached = (serialWrites() || other.serialWrites()) ? null : other.tryDetach();
+        if (detached == null) {
+            synchronizeLocked(other, walk);
+        } else if (!merge(detached, null, walk, true)) {
+            mergeLocked(detached, walk);
+        }
+        if (sink != null) {
+            sink.record(MetricsSink.Operation.SYNCHRONIZE, System.nanoTime() - start,
+                    walk.nodes);
+        }
+    }
+
+    // Synchronizes with another repository while holding both repositories' locks, so
+    // their logs and indexes see the merge in history order.
+    private void synchronizeLocked(Repository other, Walk walk) {
+
+        // Lock both repositories in a fixed order so that two synchronizes running in
+        // opposite directions cannot deadlock
+        Repository first = this;
+        Repository second = other;
+        if (System.identityHashCode(first) > System.identityHashCode(second)) {
+            first = other;
+            second = this;
+        }
+        synchronized (first) {
+            synchronized (second) {
+                // Dead commits must not be merged or mistaken for shared history
+                compactTombstones();
+                other.compactTombstones();
+                List<Commit> added = new ArrayList<>();
+                merge(other.detach(), added, walk, false);
+                imported(added);
+                other.cleared();
+            }
+        }
+        awaitLog();
+        other.awaitLog();
+    }
+
+    /**
+     * Merges the commit histories of every given repository into this repository in a
+     * single pass, sorting by timestamp, and clears the given repositories. The result is
+     * the same as synchronizing them one at a time in list order: when timestamps tie,
+     * this repository's commits come first, followed by the others in list order. Large
+     * merges are split up and run in parallel. Commits that appear in more than one of the
+     * repositories are kept once.
+     *
+     * If any of the repositories has a durable log or an index, they are synchronized one
+     * at a time instead so every log and index sees its own part of the merge.
+     * @param others The repositories to merge into this one.
+     * @throws IllegalArgumentException If 'others' contains this repository or contains
+     *                                  the same repository twice.
+     */
+    public void synchronizeAll(List<Repository> others) {
+        MetricsSink sink = metrics;
+        long start = (sink != null) ? System.nanoTime() : 0;
+        Walk walk = (sink != null) ? new Walk() : null;
+        ensureLoaded();
+        Set<Repository> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        seen.add(this);
+        boolean oneAtATime = serialWrites();
+        for (Repository other : others) {
+            if (!seen.add(other)) {
+                throw new IllegalArgumentException();
+            }
+            other.ensureLoaded();
+            oneAtATime |= other.serialWrites();
+            copyOnWrite |= other.copyOnWrite || other.pins.get() > 0;
+        }
+        if (oneAtATime) {
+            // Each synchronize records its own measurement
+            for (Repository other : others) {
+                synchronize(other);
+            }
+            return;
+        }
+
+        State[] states = new State[others.size() + 1];
+        long total = 0;
+        for (int i = 1; i < states.length; i++) {
+            states[i] = others.get(i - 1).tryDetach();
+            if (states[i] == null) {
+                // That repository has started taking turns, so the rest are merged one
+                // at a time, which gives the same result
+                for (int j = 1; j < i; j++) {
+                    mergeLocked(states[j], null);
+                }
+                for (Repository other : others.subList(i - 1, others.size())) {
+                    synchronize(other);
+                }
+                return;
+            }
+            total += states[i].size;
+        }
+        while (true) {
+            State current = state;
+            if (serial) {
+                for (int i = 1; i < states.length; i++) {
+                    mergeLocked(states[i], walk);
+                }
+                break;
+            }
+            states[0] = current;
+            State next;
+            if (total + current.size >= PARALLEL_MERGE_THRESHOLD && states.length > 2) {
+                MergeTask task = new MergeTask(states, 0, states.length);
+                next = ForkJoinPool.commonPool().invoke(task);
+                if (walk != null) {
+                    walk.nodes += task.nodes;
+                }
+            } else {
+                next = heapMerge(states, walk);
+            }
+            if (STATE.compareAndSet(this, current, next)) {
+                rewrites.incrementAndGet();
+                break;
+            }
+        }
+        if (sink != null) {
+            sink.record(MetricsSink.Operation.SYNCHRONIZE, System.nanoTime() - start,
+                    walk.nodes);
+        }
+    }
+
+    // Merges any number of chains, each ordered newest first, by repeatedly taking the
+    // newest commit off a heap of chain heads. Ties go to the chain with the lower index,
+    // and a commit that was already taken from another chain is skipped. Once a single
+    // chain is left, it is attached as it is. Returns the merged state. The commits taken
+    // off the heap are counted in 'walk' unless it is null.
+    private State heapMerge(State[] states, Walk walk) {
+        Commit[] cursors = new Commit[states.length];
+        PriorityQueue<Integer> heap = new PriorityQueue<>(cursors.length, (a, b) -> {
+            int byTime = Long.compare(cursors[b].timeStamp, cursors[a].timeStamp);
+            return (byTime != 0) ? byTime : Integer.compare(a, b);
+        });
+        long size = 0;
+        long totalMessageBytes = 0;
+        long oldestTimeStamp = 0;
+        for (int i = 0; i < states.length; i++) {
+            cursors[i] = states[i].head;
+            if (cursors[i] != null) {
+                oldestTimeStamp = (size == 0) ? states[i].oldestTimeStamp
+                        : Math.min(oldestTimeStamp, states[i].oldestTimeStamp);
+                heap.add(i);
+            }
+            size += states[i].size;
+            totalMessageBytes += states[i].totalMessageBytes;
+        }
+
+        // The same commit always has the same timestamp, so duplicates can only turn up
+        // among the commits taken at the current timestamp
+        Set<String> sameTime = new HashSet<>();
+        long time = Long.MIN_VALUE;
+
+        boolean copy = copying();
+        Commit sortedHead = null;
+        Commit lastSorted = null;
+        while (!heap.isEmpty()
+                && (heap.size() > 1 || cursors[heap.peek()].timeStamp == time)) {
+            int source = heap.poll();
+            Commit next = cursors[source];
+            if (walk != null) {
+                walk.nodes++;
+            }
+            cursors[source] = next.past;
+            if (cursors[source] != null) {
+                heap.add(source);
+            }
+            if (next.timeStamp != time) {
+                sameTime.clear();
+                time = next.timeStamp;
+            }
+            if (!sameTime.add(next.id)) {
+                size--;
+                totalMessageBytes -= messageBytes(next);
+                continue;
+            }
+            if (copy) {
+                next = new Commit(next.id, next.timeStamp, next.kept(), null);
+            }
+            if (lastSorted == null) {
+                sortedHead = next;
+            } else {
+                lastSorted.past = next;
+            }
+            lastSorted = next;
+        }
+
+        Commit rest = heap.isEmpty() ? null : cursors[heap.poll()];
+        if (lastSorted == null) {
+            sortedHead = rest;
+        } else {
+            lastSorted.past = rest;
+        }
+        return new State(sortedHead, (int) size, oldestTimeStamp, totalMessageBytes);
+    }
+
+    // Merges states[from] through states[to - 1] by splitting the range in half, merging
+    // both halves in parallel, and merging the two results. The left half wins ties, so
+    // the order matches heapMerge.
+    private class MergeTask extends RecursiveTask<State> {
+        // ForkJoinTask is Serializable, but merge tasks only live inside one merge
+        private static final long serialVersionUID = 1L;
+
+        private final State[] states;
+        private final int from;
+        private final int to;
+        long nodes;     // The commits walked over by this task and its subtasks
+
+        MergeTask(State[] states, int from, int to) {
+            this.states = states;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected State compute() {
+            if (to - from == 1) {
+                return states[from];
+            }
+            int mid = (from + to) / 2;
+            MergeTask left = new MergeTask(states, from, mid);
+            left.fork();
+            MergeTask rightTask = new MergeTask(states, mid, to);
+            State right = rightTask.compute();
+            Walk walk = new Walk();
+            State merged = merge(left.join(), right, copying(), null, walk);
+            nodes = left.nodes + rightTask.nodes + walk.nodes;
+            return merged;
+        }
+    }
+
+    // Returns true if writers must copy commits instead of relinking them in place,
+    // because another repository or an open snapshot may be holding them.
+    private boolean copying() {
+        return copyOnWrite || pins.get() > 0;
+    }
+
+    // Returns true if something attached to this repository must see every write in history
+    // order. Writers then take turns on this repository's lock instead of racing.
+    private boolean serialWrites() {
+        return serial;
+    }
+
+    // Makes writers take turns from now on, before something that must see every write is
+    // attached. Replacing the state with an equal one makes every lock-free write still
+    // under way fail its compare-and-set, and it then sees the flag when it tries again,
+    // so none lands after the caller has read the state. Must hold this repository's lock.
+    private void startSerialWrites() {
+        serial = true;
+        State current;
+        do {
+            current = state;
+        } while (!STATE.compareAndSet(this, current, new State(current.head, current.size,
+                current.oldestTimeStamp, current.totalMessageBytes)));
+    }
+
+    // Records a new head commit in the durable log and indexes.
+    private void committed(Commit commit) {
+        if (tombstones != null) {
+            tombstones.add(commit);
+        }
+        if (timeIndex != null) {
+            timeIndex.add(commit);
+        }
+        if (messageIndex != null) {
+            messageIndex.add(commit);
+        }
+        if (log != null) {
+            try {
+                log.appendCommit(commit, summary());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
-    /**
-     * Creates a new commit with the given message and adds it to the repository as the new head.
-     * @param message The commit message.
-     * @return The ID of the newly created commit.
-     */
-    public String commit(String message) {
-        head = new Commit(message, head);
-        return head.id;
+    // Records the commits removed by one drop in the durable log and indexes.
+    private void dropped(List<Commit> removed) {
+        if (timeIndex != null) {
+            for (Commit c : removed) {
+                timeIndex.remove(c);
+            }
+            refreshTimeIndex();
+        }
+        if (messageIndex != null) {
+            for (Commit c : removed) {
+                messageIndex.remove(c);
+            }
+        }
+        if (log != null) {
+            List<String> ids = new ArrayList<>(removed.size());
+            for (Commit c : removed) {
+                ids.add(c.id);
+            }
+            try {
+                log.appendDrops(ids, summary());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
-    /**
-     * Retrieves the ID of the current head commit of the repository.
-     * @return The ID of the head commit, or null if the repository is empty.
-     */
-    public String getRepoHead() {
-        return (head != null) ? head.id : null;
+    // Records the commits that synchronize added to this repository, newest first.
+    private void imported(List<Commit> added) {
+        if (tombstones != null) {
+            for (Commit c : added) {
+                tombstones.add(c);
+            }
+        }
+        if (timeIndex != null) {
+            // Refreshed first, so the walk stops at the commits the index already holds
+            refreshTimeIndex();
+            timeIndex.merge(added);
+        }
+        if (messageIndex != null) {
+            for (Commit c : added) {
+                messageIndex.add(c);
+            }
+        }
+        if (log != null) {
+            try {
+                log.appendSynchronize(added, summary());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
-    /**
-     * Counts the total number of commits in the repository.
-     * @return The total number of commits.
-     */
-    public int getRepoSize() {
-        int size = 0;
-        Commit c = head;
-        while (c != null) {
-            size++;
-            c = c.past;
+    // Points the time index at the copies copy-on-write made of the commits it held, so
+    // its lookups never return a commit that is no longer in the history.
+    private void refreshTimeIndex() {
+        if (timeIndex != null && copying()) {
+            timeIndex.refresh(state.head);
+        }
+    }
+
+    // Records that every commit was removed by synchronizing into another repository.
+    private void cleared() {
+        if (tombstones != null) {
+            tombstones.clear();
+        }
+        if (timeIndex != null) {
+            timeIndex.clear();
+        }
+        if (messageIndex != null) {
+            messageIndex.clear();
+        }
+        if (log != null) {
+            try {
+                log.appendClear();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Returns what the durable log records about the current history after a write.
+    private CommitLog.Summary summary() {
+        State current = state;
+        Commit head = skipDead(current.head);
+        if (head == null) {
+            return CommitLog.Summary.EMPTY;
+        }
+        return new CommitLog.Summary(current.size, head.id, head.timeStamp,
+                current.oldestTimeStamp, current.totalMessageBytes);
+    }
+
+    // Waits until the durable log has forced the records of this thread's writes to disk.
+    // Called after letting go of this repository's lock, so writers on other threads can
+    // add their records meanwhile and share the same force.
+    private void awaitLog() {
+        if (log != null) {
+            try {
+                log.awaitDurable();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Empties this repository and returns the state it held.
+    private State detach() {
+        rewrites.incrementAndGet();
+        return STATE.getAndSet(this, State.EMPTY);
+    }
+
+    // Empties this repository for a lock-free synchronize and returns the state it held,
+    // or returns null and leaves it as it is if writers have to take turns.
+    private State tryDetach() {
+        while (true) {
+            State current = state;
+            if (serial) {
+                return null;
+            }
+            if (STATE.compareAndSet(this, current, State.EMPTY)) {
+                rewrites.incrementAndGet();
+                return current;
+            }
         }
-        return size;
     }
 
     /**
-     * Provides a string representation of the repository, showing its name and current head commit.
-     * @return A string detailing the repository's name and head commit.
+     * Returns a counter that changes whenever commits are removed from this repository or
+     * inserted anywhere but on top of the head. While it stays the same, the only changes
+     * to the history are new commits in front of the commits already seen.
+     * @return The current value of the counter.
      */
-    @Override
-    public String toString() {
-        return name + (head == null ? " - No commits" : " - Current head: " + head);
+    long rewriteCount() {
+        return rewrites.get();
     }
 
     /**
-     * Checks if a commit with the specified ID exists within the repository.
-     * @param targetId The ID of the commit to search for.
-     * @return true if the commit exists, false otherwise.
+     * Puts commits received from a replication leader on top of this repository's
+     * history, or in place of it if 'reset' is true. The commits keep their IDs and
+     * timestamps, and later commits made here never reuse their IDs.
+     * @param commits The received commits, oldest first.
+     * @param reset true to replace the history instead of adding to it.
      */
-    public boolean contains(String targetId) {
-        Commit c = head;
-        while (c != null) {
-            if (c.id.equals(targetId)) {
-                return true;
+    void replicate(List<ReplicatedCommit> commits, boolean reset) {
+        ensureLoaded();
+        synchronized (this) {
+            if (reset && state.head != null) {
+                detach();
+                cleared();
+            }
+            if (!commits.isEmpty()) {
+                appendReplicated(commits);
             }
-            c = c.past;
         }
-        return false;
+        awaitLog();
     }
 
-    /**
-     * Removes a commit with the specified ID from the repository, if it exists.
-     * @param targetId The ID of the commit to remove.
-     * @return true if the commit was removed successfully, false if no such commit exists.
-     */
-    public boolean drop(String targetId) {
-        if (head == null) return false;
-        if (head.id.equals(targetId)) {
-            head = head.past;
+    // Puts replicated commits on top of the history for replicate. Must hold this
+    // repository's lock.
+    private void appendReplicated(List<ReplicatedCommit> commits) {
+        Commit head = null;
+        Commit tail = null;
+        long bytes = 0;
+        int maxId = -1;
+        List<Commit> added = new ArrayList<>(commits.size());
+        for (ReplicatedCommit received : commits) {
+            head = new Commit(received.id, received.timeStamp,
+                    storeMessage(received.message), head);
+            if (tail == null) {
+                tail = head;
+            }
+            bytes += messageBytes(head);
+            maxId = Math.max(maxId, Integer.parseInt(received.id));
+            added.add(head);
+        }
+        Collections.reverse(added);
+        Commit.reserveIds(maxId + 1);
+
+        while (true) {
+            State current = state;
+            tail.past = current.head;
+            State next = new State(head, current.size + commits.size(),
+                    (current.size == 0) ? tail.timeStamp : current.oldestTimeStamp,
+                    current.totalMessageBytes + bytes);
+            if (STATE.compareAndSet(this, current, next)) {
+                break;
+            }
+        }
+        imported(added);
+    }
+
+    // Merges a detached chain into this repository and publishes the result. The commits
+    // that were new to this repository are added to 'added', newest first, unless it is
+    // null. The commits walked over are counted in 'walk' unless it is null. Returns
+    // false if it is lock-free and gave up, leaving the chain unmerged, because writers
+    // have to take turns.
+    private boolean merge(State imported, List<Commit> added, Walk walk, boolean lockFree) {
+        if (imported.head == null) {
             return true;
         }
-        Commit current = head;
-        while (current.past != null) {
-            if (current.past.id.equals(targetId)) {
-                current.past = current.past.past;
+        while (true) {
+            State current = state;
+            if (lockFree && serial) {
+                return false;
+            }
+            if (added != null) {
+                added.clear();
+            }
+            State next = merge(current, imported, copying(), added, walk);
+            if (STATE.compareAndSet(this, current, next)) {
+                rewrites.incrementAndGet();
                 return true;
             }
-            current = current.past;
         }
-        return false;
     }
 
-    /**
-    * Retrieves a history of commit messages up to a specified number from the head,
-    * formatted as a string. If the specified number exceeds the actual number of commits 
-    * in the repository, it returns as many commit messages as available in the repository.
-    * @param n The number of commit messages to retrieve.
-    * @return A string containing the most recent 'n'
-    * commit messages, or fewer if the repository size is smaller than 'n'.
-    * @throws IllegalArgumentException If 'n' is less than or equal to zero.
-     */
-    public String getHistory(int n) {
-        if (n <= 0) throw new IllegalArgumentException();
-        String history = "";
-        Commit current = head;
-        while (current != null && n > 0) {
-            history += current.toString() + "\n";
-            current = current.past;
-            n--;
+    // Merges a detached chain into this repository while holding its lock, so its log and
+    // indexes see the commits that were added.
+    private void mergeLocked(State imported, Walk walk) {
+        synchronized (this) {
+            compactTombstones();
+            List<Commit> added = new ArrayList<>();
+            merge(imported, added, walk, false);
+            imported(added);
         }
-        return history.trim();
+        awaitLog();
     }
 
-    /**
-    * Merges another repository's commit history into this repository, sorting by timestamp.
-    * Ensures all commits from the other repository are integrated in chronological order and 
-    * clears the other repository after merging. Handles cases where one or both repositories 
-    * might initially be empty.
-    *
-    * @param other The repository to merge into this one.
-    */
-    public void synchronize(Repository other) {
-        Commit current = this.head;
-        Commit otherCurrent = other.head;
+    // Merges the chains of two states, each ordered newest first, into a single chain
+    // ordered the same way and returns the merged state. When timestamps tie, commits from
+    // 'current' come first. If 'copy' is true, the interleaved commits are copied instead
+    // of relinked. The commits taken from 'imported' are added to 'added' unless it is null.
+    //
+    // Once both chains reach the very same commit node, the rest of the chains are the
+    // same and the rest of 'current' is attached without walking it. Copy-on-write keeps
+    // the IDs of the commits it copies, so before that point the same commit may turn up
+    // in both chains as two different nodes, even in a different order among commits made
+    // in the same millisecond; the copy in 'imported' is then skipped. The commits walked
+    // over are counted in 'walk' unless it is null.
+    private State merge(State current, State imported, boolean copy, List<Commit> added,
+            Walk walk) {
+        Commit first = current.head;
+        Commit second = imported.head;
         Commit sortedHead = null;
         Commit lastSorted = null;
+        int taken = 0;
+        long takenBytes = 0;
+        int duplicates = 0;
+        long duplicateBytes = 0;
+        boolean shared = false;
+        int visited = 0;
 
-        while (current != null && otherCurrent != null) {
-            if (current.timeStamp >= otherCurrent.timeStamp) {
-                if (lastSorted == null) {
-                    sortedHead = current;
-                } else {
-                    lastSorted.past = current;
+        // The same commit always has the same timestamp, so a copy can only turn up among
+        // the commits placed at the current timestamp
+        Set<String> sameTime = new HashSet<>();
+        long time = Long.MIN_VALUE;
+
+        // On a tie, the commits of 'current' still to be placed at that timestamp, found
+        // once per tied timestamp, so a copy is not taken ahead of its original
+        Set<String> tied = null;
+        long tiedTime = Long.MIN_VALUE;
+
+        // Once 'current' runs out, 'imported' is still walked through the commits at the
+        // last placed timestamp, since those may be copies of ones already placed
+        while (second != null && (first != null || second.timeStamp == time)) {
+            if (first == second) {
+                shared = true;
+                break;
+            }
+            boolean duplicate = (first != null && second.id.equals(first.id))
+                    || (second.timeStamp == time && sameTime.contains(second.id));
+            if (!duplicate && first != null && second.timeStamp == first.timeStamp) {
+                if (tied == null || tiedTime != first.timeStamp) {
+                    tied = sameTimeIds(first);
+                    tiedTime = first.timeStamp;
                 }
-                lastSorted = current;
-                current = current.past;
+                duplicate = tied.contains(second.id);
+            }
+            if (duplicate) {
+                duplicates++;
+                duplicateBytes += messageBytes(second);
+                second = second.past;
+                visited++;
+                continue;
+            }
+            Commit next;
+            boolean take = first == null || first.timeStamp < second.timeStamp
+                    || (first.timeStamp == second.timeStamp && reachesSoon(second, first.id));
+            if (!take) {
+                next = first;
+                first = first.past;
             } else {
-                if (lastSorted == null) {
-                    sortedHead = otherCurrent;
-                } else {
-                    lastSorted.past = otherCurrent;
+                next = second;
+                second = second.past;
+                taken++;
+                takenBytes += messageBytes(next);
+            }
+            if (next.timeStamp != time) {
+                sameTime.clear();
+                time = next.timeStamp;
+            }
+            if (!take) {
+                sameTime.add(next.id);
+            }
+            if (copy) {
+                next = new Commit(next.id, next.timeStamp, next.kept(), null);
+            }
+            if (take && added != null) {
+                // The copy is what ends up in the history, so indexes must see it
+                added.add(next);
+            }
+            if (lastSorted == null) {
+                sortedHead = next;
+            } else {
+                lastSorted.past = next;
+            }
+            lastSorted = next;
+            visited++;
+        }
+
+        Commit rest = first;
+        if (!shared && second != null) {
+            rest = second;
+            if (added != null) {
+                for (Commit c = second; c != null; c = c.past) {
+                    added.add(c);
+                    visited++;
                 }
-                lastSorted = otherCurrent;
-                otherCurrent = otherCurrent.past;
             }
         }
+        if (walk != null) {
+            walk.nodes += visited;
+        }
+        if (lastSorted == null) {
+            sortedHead = rest;
+        } else {
+            lastSorted.past = rest;
+        }
 
-        if (current != null) {
-            if (lastSorted != null) {
-                lastSorted.past = current;
-            } else {
-                sortedHead = current;
+        if (shared) {
+            return new State(sortedHead, current.size + taken, current.oldestTimeStamp,
+                    current.totalMessageBytes + takenBytes);
+        }
+        long oldestTimeStamp = (current.size == 0) ? imported.oldestTimeStamp
+                : (imported.size == 0) ? current.oldestTimeStamp
+                : Math.min(current.oldestTimeStamp, imported.oldestTimeStamp);
+        return new State(sortedHead, current.size + imported.size - duplicates,
+                oldestTimeStamp,
+                current.totalMessageBytes + imported.totalMessageBytes - duplicateBytes);
+    }
+
+    // Returns the IDs of 'start' and of the commits after it in its chain that were made in
+    // the same millisecond.
+    private static Set<String> sameTimeIds(Commit start) {
+        Set<String> ids = new HashSet<>();
+        for (Commit c = start; c != null && c.timeStamp == start.timeStamp; c = c.past) {
+            ids.add(c.id);
+        }
+        return ids;
+    }
+
+    // Returns true if the commit with the given ID is among the next few commits of the
+    // chain starting at 'start' that were made in the same millisecond as 'start'. Used
+    // so a timestamp tie right before a shared commit does not step past it.
+    private static boolean reachesSoon(Commit start, String id) {
+        int scanned = 0;
+        for (Commit c = start; c != null && c.timeStamp == start.timeStamp
+                && scanned < TIE_SCAN_LIMIT; c = c.past, scanned++) {
+            if (c.id.equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Rebuilds the commit chain by replaying the whole durable log, the first time
+    // anything but the summary's statistics or a commit needs it.
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            LogReplayer replayer = new LogReplayer();
+            try {
+                log.replay(replayer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-        } else if (otherCurrent != null) {
-            if (lastSorted != null) {
-                lastSorted.past = otherCurrent;
+            Commit head = replayer.finish();
+            int size = 0;
+            long oldestTimeStamp = 0;
+            long totalMessageBytes = 0;
+            for (Commit c = head; c != null; c = c.past) {
+                size++;
+                oldestTimeStamp = c.timeStamp;
+                totalMessageBytes += messageBytes(c);
+            }
+            state = new State(head, size, oldestTimeStamp, totalMessageBytes);
+            loaded = true;
+        }
+    }
+
+    // Replays a durable log into a commit chain. Drops are collected and applied in one
+    // pass instead of walking the chain once per dropped commit. New commits never reuse
+    // an ID, but a synchronize can bring back a commit that was dropped, and its merge
+    // must see the chain as it was, so the collected drops are applied before each
+    // synchronize and at the end.
+    private class LogReplayer implements CommitLog.Replayer {
+        private Commit chain;
+        private Commit importedHead;
+        private Commit importedTail;
+        private final Set<String> dropped = new HashSet<>();
+
+        public void commit(String id, long timeStamp, String message) {
+            chain = new Commit(id, timeStamp, storeMessage(message), chain);
+        }
+
+        public void drop(String id) {
+            dropped.add(id);
+        }
+
+        public void imported(String id, long timeStamp, String message) {
+            Commit commit = new Commit(id, timeStamp, storeMessage(message), null);
+            if (importedHead == null) {
+                importedHead = commit;
             } else {
-                sortedHead = otherCurrent;
+                importedTail.past = commit;
+            }
+            importedTail = commit;
+        }
+
+        public void synchronize() {
+            applyDrops();
+            // Only the merged head is used; the replayed statistics are counted at the end
+            chain = merge(new State(chain, 0, 0, 0), new State(importedHead, 0, 0, 0),
+                    false, null, null).head;
+            importedHead = null;
+            importedTail = null;
+        }
+
+        public void clear() {
+            chain = null;
+            importedHead = null;
+            importedTail = null;
+            dropped.clear();
+        }
+
+        // Applies the remaining drops and returns the replayed chain. Imports without a
+        // matching synchronize record were torn by a crash and are discarded.
+        Commit finish() {
+            applyDrops();
+            return chain;
+        }
+
+        // Unlinks the commits dropped since the drops were last applied, in one pass.
+        private void applyDrops() {
+            if (dropped.isEmpty()) {
+                return;
             }
+            while (chain != null && dropped.contains(chain.id)) {
+                chain = chain.past;
+            }
+            for (Commit c = chain; c != null; c = c.past) {
+                while (c.past != null && dropped.contains(c.past.id)) {
+                    c.past = c.past.past;
+                }
+            }
+            dropped.clear();
+        }
+    }
+
+    // Where the last page handed out by getHistoryPage stopped: the commit the next page
+    // starts at, and the rewrite count it was found under.
+    private static class PageCursor {
+        final String token;
+        final Commit next;
+        final long version;
+
+        PageCursor(String token, Commit next, long version) {
+            this.token = token;
+            this.next = next;
+            this.version = version;
+        }
+    }
+
+    // Counts the commits an operation walks over, for its metrics sink.
+    private static class Walk {
+        long nodes;
+    }
+
+    // The contents of a commit received from a replication leader.
+    static class ReplicatedCommit {
+        final String id;
+        final long timeStamp;
+        final String message;
+
+        ReplicatedCommit(String id, long timeStamp, String message) {
+            this.id = id;
+            this.timeStamp = timeStamp;
+            this.message = message;
+        }
+    }
+
+    // An immutable snapshot of the head of the commit chain together with the chain's
+    // statistics.
+    private static class State {
+        static final State EMPTY = new State(null, 0, 0, 0);
+
+        final Commit head;              // The head commit, or null if the chain is empty
+        final int size;                 // The number of commits in the chain
+        final long oldestTimeStamp;     // The timestamp of the last commit in the chain
+        final long totalMessageBytes;   // The UTF-8 size of all commit messages in the chain
+
+        State(Commit head, int size, long oldestTimeStamp, long totalMessageBytes) {
+            this.head = head;
+            this.size = size;
+            this.oldestTimeStamp = oldestTimeStamp;
+            this.totalMessageBytes = totalMessageBytes;
+        }
+
+        // Returns the state after pushing the given commit, whose past must be this head.
+        State push(Commit commit) {
+            return new State(commit, size + 1, (size == 0) ? commit.timeStamp : oldestTimeStamp,
+                    totalMessageBytes + messageBytes(commit));
+        }
+    }
+
+    /**
+     * A single page of repository history, along with the token for the following page.
+     */
+    public static class HistoryPage {
+        private final List<Commit> commits;
+        private final String nextPageToken;
+
+        // Also used by ColumnarRepository, which pages through its history the same way.
+        HistoryPage(List<Commit> commits, String nextPageToken) {
+            this.commits = Collections.unmodifiableList(commits);
+            this.nextPageToken = nextPageToken;
+        }
+
+        /**
+         * Returns the commits in this page, newest first.
+         * @return An unmodifiable list of commits.
+         */
+        public List<Commit> getCommits() {
+            return commits;
         }
 
-        this.head = sortedHead;
-        other.head = null;
+        /**
+         * Returns the token that resumes history after this page.
+         * @return The next page token, or null if this is the last page.
+         */
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
     }
 
+    /**
+     * A read-only view of one version of a repository, made by snapshot(). Closing it lets
+     * the repository go back to relinking commits in place once no other snapshot is open.
+     */
+    public class Snapshot implements AutoCloseable {
+        private static final Cleaner CLEANER = Cleaner.create();
+
+        private final State pinned;
+        private final Set<String> dead;     // The commits dead in tombstone mode, or null
+        private final Cleaner.Cleanable unpin;
+
+        private Snapshot(State pinned, Set<String> dead) {
+            this.pinned = pinned;
+            this.dead = dead;
+            // Unpins on close, or once the snapshot is unreachable if it is never closed.
+            // The action must not refer to the snapshot itself, or it would never become
+            // unreachable.
+            AtomicInteger count = pins;
+            this.unpin = CLEANER.register(this, count::decrementAndGet);
+        }
+
+        /**
+         * Returns the ID of the head commit in this version.
+         * @return The ID of the head commit, or null if this version is empty.
+         */
+        public String getRepoHead() {
+            Commit head = skip(pinned.head);
+            return (head != null) ? head.id : null;
+        }
 
+        /**
+         * Returns the number of commits in this version. Runs in constant time.
+         * @return The number of commits.
+         */
+        public int getRepoSize() {
+            return pinned.size;
+        }
 
-    
+        /**
+         * Checks if a commit with the given ID is in this version.
+         * @param targetId The ID of the commit to search for.
+         * @return true if the commit is in this version, false otherwise.
+         */
+        public boolean contains(String targetId) {
+            for (Commit c = pinned.head; c != null; c = c.past) {
+                if (c.id.equals(targetId)) {
+                    return dead == null || !dead.contains(c.id);
+                }
+            }
+            return false;
+        }
 
-   
+        /**
+         * Returns up to 'n' of the most recent commits of this version in the same form as
+         * Repository.getHistory.
+         * @param n The number of commits to include.
+         * @return The most recent 'n' commits, one per line.
+         * @throws IllegalArgumentException If 'n' is less than or equal to zero.
+         */
+        public String getHistory(int n) {
+            if (n <= 0) throw new IllegalArgumentException();
+            StringBuilder history = new StringBuilder();
+            Commit current = skip(pinned.head);
+            for (int i = 0; i < n && current != null; i++) {
+                if (i > 0) {
+                    history.append('\n');
+                }
+                try {
+                    current.appendTo(history);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);  // StringBuilder never throws
+                }
+                current = skip(current.past);
+            }
+            return history.toString().trim();
+        }
 
+        /**
+         * Returns an iterator over every commit in this version, newest first.
+         * @return An iterator starting at the head commit.
+         */
+        public Iterator<Commit> historyIterator() {
+            return new Iterator<Commit>() {
+                private Commit next = skip(pinned.head);
 
+                public boolean hasNext() {
+                    return next != null;
+                }
 
+                public Commit next() {
+                    if (next == null) throw new NoSuchElementException();
+                    Commit result = next;
+                    next = skip(next.past);
+                    return result;
+                }
+            };
+        }
 
+        /**
+         * Releases this snapshot. Once it is closed, later writes may show through it, so
+         * it should no longer be read. Closing it again has no effect.
+         */
+        public void close() {
+            unpin.clean();
+        }
 
+        // Returns the first commit at or after 'commit' that was not dead in this version.
+        private Commit skip(Commit commit) {
+            while (dead != null && commit != null && dead.contains(commit.id)) {
+                commit = commit.past;
+            }
+            return commit;
+        }
+    }
 
+    // Walks the commit chain from a starting commit toward the oldest commit, skipping
+    // commits that are dead in tombstone mode.
+    private class HistoryIterator implements Iterator<Commit> {
+        private Commit next;
 
+        private HistoryIterator(Commit start) {
+            this.next = skipDead(start);
+        }
 
+        public boolean hasNext() {
+            return next != null;
+        }
 
+        public Commit next() {
+            if (next == null) throw new NoSuchElementException();
+            Commit result = next;
+            next = skipDead(next.past);
+            return result;
+        }
+    }
 
+    // Formats commit timestamps. SimpleDateFormat is not thread-safe, so each thread keeps
+    // its own formatter along with the most recently formatted second, which most
+    // consecutive commits share.
+    static class TimeStampFormat {
+        private static final ThreadLocal<TimeStampFormat> FORMATS =
+                ThreadLocal.withInitial(TimeStampFormat::new);
 
+        private final SimpleDateFormat formatter =
+                new SimpleDateFormat("yyyy-MM-dd 'at' HH:mm:ss z");
+        private long cachedSecond = Long.MIN_VALUE;
+        private String cachedText;
 
+        // Returns the given time, in milliseconds, in the commit display format.
+        static String format(long timeStamp) {
+            TimeStampFormat format = FORMATS.get();
+            long second = Math.floorDiv(timeStamp, 1000);
+            if (second != format.cachedSecond) {
+                format.cachedText = format.formatter.format(new Date(timeStamp));
+                format.cachedSecond = second;
+            }
+            return format.cachedText;
+        }
+    }
 
     /**
      * DO NOT MODIFY
@@ -212,7 +2312,8 @@ public class Repository {
      */
     public class Commit {
 
-        private static int currentCommitID;
+        // Hands out commit IDs atomically so concurrent commits never share an ID
+        private static final AtomicInteger currentCommitID = new AtomicInteger();
 
         /**
          * The time, in milliseconds, at which this commit was created.
@@ -225,10 +2326,16 @@ public class Repository {
         public final String id;
 
         /**
-         * A message describing the changes made in this commit.
+         * A message describing the changes made in this commit. Null if the message is
+         * compressed in the message store of the repository the commit was made in; use
+         * getMessage() to read the message either way.
          */
         public final String message;
 
+        // Where the message store keeps this commit's message, or null if the message is
+        // in 'message'
+        private final MessageStore.Stored stored;
+
         /**
          * A reference to the previous commit, if it exists. Otherwise, null.
          */
@@ -242,9 +2349,18 @@ public class Repository {
          *             commit.
          */
         public Commit(String message, Commit past) {
-            this.id = "" + currentCommitID++;
-            this.message = message;
-            this.timeStamp = System.currentTimeMillis();
+            this("" + allocateId(), System.currentTimeMillis(), storeMessage(message), past);
+        }
+
+        // Constructs a commit object that restores a commit recorded earlier, keeping its
+        // original identifier and timestamp. The message is kept as given, so it must
+        // already have gone through storeMessage.
+        private Commit(String id, long timeStamp, Object message, Commit past) {
+            this.id = id;
+            this.message = (message instanceof String) ? (String) message : null;
+            this.stored = (message instanceof MessageStore.Stored)
+                    ? (MessageStore.Stored) message : null;
+            this.timeStamp = timeStamp;
             this.past = past;
         }
 
@@ -257,6 +2373,20 @@ public class Repository {
             this(message, null);
         }
 
+        /**
+         * Returns the message describing the changes made in this commit. If the message
+         * is compressed in a message store, it is decompressed on every call.
+         * @return The commit message.
+         */
+        public String getMessage() {
+            return (stored != null) ? MessageStore.text(stored) : message;
+        }
+
+        // Returns the message the way storeMessage left it, for copies of this commit.
+        private Object kept() {
+            return (stored != null) ? stored : message;
+        }
+
         /**
          * Returns a string representation of this commit. The string
          * representation consists of this commit's unique identifier,
@@ -266,10 +2396,13 @@ public class Repository {
          */
         @Override
         public String toString() {
-            SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd 'at' HH:mm:ss z");
-            Date date = new Date(timeStamp);
+            return id + " at " + TimeStampFormat.format(timeStamp) + ": " + getMessage();
+        }
 
-            return id + " at " + formatter.format(date) + ": " + message;
+        // Writes the same text as toString() directly to the given output.
+        private void appendTo(Appendable out) throws IOException {
+            out.append(id).append(" at ").append(TimeStampFormat.format(timeStamp))
+                    .append(": ").append(String.valueOf(getMessage()));
         }
 
         /**
@@ -277,7 +2410,24 @@ public class Repository {
         * Primarily for testing purposes.
         */
         public static void resetIds() {
-            Commit.currentCommitID = 0;
+            Commit.currentCommitID.set(0);
+        }
+
+        // Returns a new commit ID that no other commit has been given. Also used by the
+        // other repository implementations so IDs stay unique across all of them.
+        static int allocateId() {
+            return currentCommitID.getAndIncrement();
+        }
+
+        // Returns the ID the next commit will be given, without using it up.
+        static int peekNextId() {
+            return currentCommitID.get();
+        }
+
+        // Makes sure future commits never reuse an ID below 'nextId'. Also used by
+        // RepositoryRegistry to carry IDs over to repositories it has not read back yet.
+        static void reserveIds(int nextId) {
+            Commit.currentCommitID.accumulateAndGet(nextId, Math::max);
         }
     }
 }
@@ -0,0 +1,195 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/**
+ * A metrics sink that keeps, for every operation, a count, a latency histogram and a
+ * histogram of the commits walked over, and can publish them over JMX. Histograms use
+ * power-of-two buckets, so percentiles are accurate to within a factor of two and
+ * recording takes a few atomic increments no matter how many values have been recorded.
+ */
+public class RepositoryMetrics implements MetricsSink, RepositoryMetricsMXBean {
+    private static final MetricsSink.Operation[] OPERATIONS = MetricsSink.Operation.values();
+
+    private final Histogram[] latencies = new Histogram[OPERATIONS.length];
+    private final Histogram[] nodes = new Histogram[OPERATIONS.length];
+
+    /**
+     * Constructs an empty set of metrics.
+     */
+    public RepositoryMetrics() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i] = new Histogram();
+            nodes[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server under the name
+     * "MiniGit:type=RepositoryMetrics,name=" followed by the given name.
+     * @param name The name to register under, usually the repository's name.
+     * @return The registered object name.
+     * @throws IllegalArgumentException If the name is not valid or is already registered.
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("MiniGit:type=RepositoryMetrics,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public void record(MetricsSink.Operation operation, long nanos, long nodesVisited) {
+        latencies[operation.ordinal()].record(nanos);
+        nodes[operation.ordinal()].record(nodesVisited);
+    }
+
+    /**
+     * Returns the number of times the given operation ran.
+     * @param operation The operation.
+     * @return The operation's count.
+     */
+    public long getCount(MetricsSink.Operation operation) {
+        return latencies[operation.ordinal()].count();
+    }
+
+    /**
+     * Returns an upper bound on the given percentile of the operation's latency.
+     * @param operation The operation.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The latency in nanoseconds, or 0 if the operation never ran.
+     */
+    public long getLatencyPercentile(MetricsSink.Operation operation, double percentile) {
+        return latencies[operation.ordinal()].percentile(percentile);
+    }
+
+    /**
+     * Returns the total number of commits the given operation walked over.
+     * @param operation The operation.
+     * @return The total number of nodes visited.
+     */
+    public long getNodesVisited(MetricsSink.Operation operation) {
+        return nodes[operation.ordinal()].sum();
+    }
+
+    /**
+     * Returns an upper bound on the given percentile of the commits the operation walked
+     * over per call.
+     * @param operation The operation.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The number of nodes visited, or 0 if the operation never ran.
+     */
+    public long getNodesPercentile(MetricsSink.Operation operation, double percentile) {
+        return nodes[operation.ordinal()].percentile(percentile);
+    }
+
+    public Map<String, Long> getCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (MetricsSink.Operation operation : OPERATIONS) {
+            result.put(operation.name(), getCount(operation));
+        }
+        return result;
+    }
+
+    public Map<String, Double> getMeanLatencyMicros() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (MetricsSink.Operation operation : OPERATIONS) {
+            result.put(operation.name(), latencies[operation.ordinal()].mean() / 1000);
+        }
+        return result;
+    }
+
+    public Map<String, Double> getP99LatencyMicros() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (MetricsSink.Operation operation : OPERATIONS) {
+            result.put(operation.name(), getLatencyPercentile(operation, 99) / 1000.0);
+        }
+        return result;
+    }
+
+    public Map<String, Double> getMeanNodesVisited() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (MetricsSink.Operation operation : OPERATIONS) {
+            result.put(operation.name(), nodes[operation.ordinal()].mean());
+        }
+        return result;
+    }
+
+    public Map<String, Long> getP99NodesVisited() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (MetricsSink.Operation operation : OPERATIONS) {
+            result.put(operation.name(), getNodesPercentile(operation, 99));
+        }
+        return result;
+    }
+
+    public void reset() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i].reset();
+            nodes[i].reset();
+        }
+    }
+
+    // Counts non-negative values in buckets by their highest set bit. Bucket 0 holds 0,
+    // and bucket i holds values from 2^(i-1) to 2^i - 1.
+    private static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(65);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long value) {
+            value = Math.max(value, 0);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        double mean() {
+            long n = count.sum();
+            return (n == 0) ? 0 : (double) sum.sum() / n;
+        }
+
+        // Returns the upper bound of the bucket holding the given percentile.
+        long percentile(double percentile) {
+            long total = 0;
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return (i == 0) ? 0 : (i == 64) ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+        }
+    }
+}
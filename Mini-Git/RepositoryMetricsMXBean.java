@@ -0,0 +1,41 @@
+import java.util.Map;
+
+/**
+ * The JMX view of a RepositoryMetrics. Every map is keyed by operation name.
+ */
+public interface RepositoryMetricsMXBean {
+    /**
+     * Returns the number of times each operation ran.
+     * @return The operation counts.
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * Returns the mean latency of each operation, in microseconds.
+     * @return The mean latencies.
+     */
+    Map<String, Double> getMeanLatencyMicros();
+
+    /**
+     * Returns the 99th percentile latency of each operation, in microseconds.
+     * @return The 99th percentile latencies.
+     */
+    Map<String, Double> getP99LatencyMicros();
+
+    /**
+     * Returns the mean number of commits each operation walked over.
+     * @return The mean number of nodes visited.
+     */
+    Map<String, Double> getMeanNodesVisited();
+
+    /**
+     * Returns the 99th percentile of the commits each operation walked over.
+     * @return The 99th percentile of nodes visited.
+     */
+    Map<String, Long> getP99NodesVisited();
+
+    /**
+     * Forgets every measurement recorded so far.
+     */
+    void reset();
+}
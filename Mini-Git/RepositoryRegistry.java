@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Holds named repositories for clients that may run in parallel. Names are spread over
+ * shards that each have their own lock, so clients working on different repositories
+ * rarely wait for each other, and every repository is created with
+ * Repository.concurrent, so clients may also share one.
+ *
+ * A registry backed by a directory keeps only a limited number of repositories in memory.
+ * Once a shard holds more than its share, the repositories that were used least recently
+ * and are not leased are written to the directory with exportHistory and dropped from
+ * memory. A repository on disk is read back the next time it is leased. Repositories that
+ * are already on disk when the registry is opened are only read when first leased.
+ *
+ * Reading and writing repository files happens outside the shard locks, under a lock of
+ * the repository's own, so a slow read or write only holds up clients of that repository.
+ * Every file is forced to disk before it replaces the old one, so after a crash each file
+ * holds either its old or its new contents, and the recorded next commit ID covers every
+ * repository file.
+ *
+ * Repositories are used through leases, which keep them in memory until closed:
+ *      try (RepositoryRegistry.Lease lease = registry.acquire(name)) {
+ *          lease.getRepository().commit(message);
+ *      }
+ */
+public class RepositoryRegistry implements AutoCloseable {
+    // The largest number of shards, which each have their own lock
+    private static final int MAX_SHARDS = 64;
+
+    // The number of subdirectories repository files are spread over, so no single
+    // directory holds hundreds of thousands of files
+    private static final int FILE_BUCKETS = 256;
+
+    private static final String SUFFIX = ".history";
+
+    // The file that records the next commit ID, so commits made after reopening never
+    // reuse the ID of a commit in a repository that was not read back yet
+    private static final String NEXT_ID_FILE = "next-id";
+
+    private final Path directory;   // Where evicted repositories are kept, or null
+    private final Shard[] shards;
+    private final int shardCapacity; // The repositories each shard keeps loaded
+
+    /**
+     * Constructs a registry that keeps every repository in memory.
+     */
+    public RepositoryRegistry() {
+        this.directory = null;
+        this.shards = newShards(MAX_SHARDS);
+        this.shardCapacity = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Opens a registry that keeps about 'maxLoaded' repositories in memory and the rest in
+     * the given directory, creating the directory if it does not exist. The repositories
+     * already stored there become part of the registry but are not read yet.
+     * @param directory The directory holding evicted repositories.
+     * @param maxLoaded The number of repositories to keep in memory.
+     * @throws IOException If the directory cannot be created or listed.
+     * @throws IllegalArgumentException If the directory is null or 'maxLoaded' is less
+     *                                  than one.
+     */
+    public RepositoryRegistry(Path directory, int maxLoaded) throws IOException {
+        if (directory == null || maxLoaded < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.directory = directory;
+        // Never have more shards than loaded repositories, so the limit is met exactly
+        this.shards = newShards(Integer.highestOneBit(Math.min(MAX_SHARDS, maxLoaded)));
+        this.shardCapacity = maxLoaded / shards.length;
+
+        Files.createDirectories(directory);
+        Path nextId = directory.resolve(NEXT_ID_FILE);
+        if (Files.exists(nextId)) {
+            Repository.Commit.reserveIds(Integer.parseInt(Files.readString(nextId).trim()));
+        }
+        try (Stream<Path> files = Files.walk(directory, 2)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(SUFFIX) && Files.isRegularFile(file)) {
+                    String name = URLDecoder.decode(
+                            fileName.substring(0, fileName.length() - SUFFIX.length()),
+                            StandardCharsets.UTF_8);
+                    shardOf(name).entries.put(name, new Entry(name));
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a new, empty repository with the given name.
+     * @param name The name of the repository.
+     * @return true if the repository was created, false if one with that name exists.
+     * @throws IOException If another repository has to be written out and cannot be.
+     * @throws IllegalArgumentException If the name is null or empty.
+     */
+    public boolean create(String name) throws IOException {
+        Repository repo = Repository.concurrent(name);
+        Shard shard = shardOf(name);
+        List<Entry> victims;
+        synchronized (shard) {
+            if (shard.entries.containsKey(name)) {
+                return false;
+            }
+            Entry entry = new Entry(name);
+            entry.repo = repo;
+            shard.entries.put(name, entry);
+            shard.loaded.put(name, entry);
+            victims = victims(shard);
+        }
+        evict(shard, victims);
+        return true;
+    }
+
+    /**
+     * Checks if a repository with the given name exists, in memory or on disk.
+     * @param name The name of the repository.
+     * @return true if the repository exists, false otherwise.
+     */
+    public boolean contains(String name) {
+        Shard shard = shardOf(name);
+        synchronized (shard) {
+            return shard.entries.containsKey(name);
+        }
+    }
+
+    /**
+     * Returns the number of repositories in the registry, in memory or on disk.
+     * @return The number of repositories.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of repositories currently held in memory.
+     * @return The number of loaded repositories.
+     */
+    public int loadedCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                count += shard.loaded.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the names of every repository in the registry, in no particular order.
+     * @return A new list of names.
+     */
+    public List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                names.addAll(shard.entries.keySet());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Leases the repository with the given name, reading it from disk if it was evicted.
+     * The repository stays in memory until the lease is closed. It may be used after
+     * that only until the registry writes it out, so keep the lease open while using it.
+     * @param name The name of the repository.
+     * @return A lease on the repository, or null if no repository has that name.
+     * @throws IOException If the repository cannot be read, or another repository has to
+     *                     be written out and cannot be.
+     */
+    public Lease acquire(String name) throws IOException {
+        Shard shard = shardOf(name);
+        Entry entry;
+        synchronized (shard) {
+            entry = shard.entries.get(name);
+            if (entry == null) {
+                return null;
+            }
+            // Leased first, so the repository cannot be evicted while it is read
+            entry.leases++;
+        }
+        Lease lease = null;
+        try {
+            synchronized (entry) {
+                if (entry.repo == null) {
+                    Repository repo = Repository.concurrent(name);
+                    repo.importHistory(fileOf(name));
+                    entry.savedRewrites = repo.rewriteCount();
+                    entry.savedHead = repo.getRepoHead();
+                    entry.repo = repo;
+                }
+                lease = new Lease(shard, entry);
+            }
+            List<Entry> victims;
+            synchronized (shard) {
+                shard.loaded.put(name, entry);  // Also marks it as the most recently used
+                victims = victims(shard);
+            }
+            evict(shard, victims);
+            return lease;
+        } catch (IOException | RuntimeException e) {
+            if (lease != null) {
+                lease.close();
+            } else {
+                synchronized (shard) {
+                    entry.leases--;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes every repository in memory that changed since it was last read or written
+     * to disk. Does nothing for a registry without a directory.
+     * @throws IOException If a repository cannot be written.
+     */
+    public void flush() throws IOException {
+        if (directory == null) {
+            return;
+        }
+        for (Shard shard : shards) {
+            List<Entry> entries;
+            synchronized (shard) {
+                entries = new ArrayList<>(shard.loaded.values());
+            }
+            for (Entry entry : entries) {
+                synchronized (entry) {
+                    if (entry.repo != null) {
+                        save(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes out every changed repository, as flush does.
+     * @throws IOException If a repository cannot be written.
+     */
+    public void close() throws IOException {
+        flush();
+    }
+
+    // Takes the least recently used repositories that are not leased out of the shard's
+    // loaded ones until the shard is back within its share, or only leased ones are left,
+    // and returns them to be passed to evict. Must hold the shard's lock.
+    private List<Entry> victims(Shard shard) {
+        if (shard.loaded.size() <= shardCapacity) {
+            return List.of();
+        }
+        List<Entry> victims = new ArrayList<>();
+        Iterator<Entry> eldest = shard.loaded.values().iterator();
+        while (shard.loaded.size() > shardCapacity && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            if (entry.leases == 0) {
+                victims.add(entry);
+                eldest.remove();
+            }
+        }
+        return victims;
+    }
+
+    // Writes out and unloads the repositories taken by victims. A repository leased again
+    // while it was written stays in memory. Must not hold the shard's lock. Every victim
+    // is handled even if writing one fails, and the first failure is thrown afterwards.
+    private void evict(Shard shard, List<Entry> victims) throws IOException {
+        IOException failure = null;
+        for (Entry entry : victims) {
+            synchronized (entry) {
+                if (entry.repo == null) {
+                    continue;   // Leased and taken as a victim again, then unloaded already
+                }
+                boolean saved = false;
+                try {
+                    save(entry);
+                    saved = true;
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                synchronized (shard) {
+                    // A repository that was leased or changed during the write is kept, so
+                    // nothing is lost. Unleased, it cannot change while the lock is held.
+                    if (saved && entry.leases == 0 && !changed(entry)
+                            && !shard.loaded.containsKey(entry.name)) {
+                        entry.repo = null;
+                    } else {
+                        shard.loaded.putIfAbsent(entry.name, entry);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Writes a loaded repository to its file if it changed since it was last read or
+    // written. Must hold the entry's lock.
+    private void save(Entry entry) throws IOException {
+        if (!changed(entry)) {
+            return;
+        }
+        Repository repo = entry.repo;
+        // Taken before exporting, so changes made by a leaseholder during the export are
+        // written next time
+        long rewrites = repo.rewriteCount();
+        String head = repo.getRepoHead();
+        Path file = fileOf(entry.name);
+        Files.createDirectories(file.getParent());
+        replace(file, repo::exportHistory);
+        entry.savedRewrites = rewrites;
+        entry.savedHead = head;
+        saveNextId();
+    }
+
+    // Returns true if a loaded repository changed since it was last read or written.
+    private static boolean changed(Entry entry) {
+        Repository repo = entry.repo;
+        return repo.rewriteCount() != entry.savedRewrites
+                || !Objects.equals(repo.getRepoHead(), entry.savedHead);
+    }
+
+    // Records an ID above every commit ID handed out so far. Called after writing a
+    // repository, so the record always covers every repository on disk.
+    private synchronized void saveNextId() throws IOException {
+        byte[] nextId = Integer.toString(Repository.Commit.peekNextId())
+                .getBytes(StandardCharsets.UTF_8);
+        replace(directory.resolve(NEXT_ID_FILE), out -> {
+            ByteBuffer buffer = ByteBuffer.wrap(nextId);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        });
+    }
+
+    // Replaces a file in one step with what 'contents' writes. The new contents and then
+    // the rename are forced to disk before returning, so a crash leaves the old or the new
+    // file, never an empty or partly written one.
+    private static void replace(Path file, Contents contents) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            contents.writeTo(out);
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel parent = FileChannel.open(file.getParent(), StandardOpenOption.READ)) {
+            parent.force(true);
+        } catch (IOException e) {
+            // Some platforms cannot open a directory; there the rename is only as durable
+            // as the file system makes it
+        }
+    }
+
+    // Writes the contents of a file.
+    private interface Contents {
+        void writeTo(FileChannel out) throws IOException;
+    }
+
+    // Returns the file that holds the named repository while it is evicted.
+    private Path fileOf(String name) {
+        String bucket = String.format("%02x", (name.hashCode() & 0x7fffffff) % FILE_BUCKETS);
+        return directory.resolve(bucket)
+                .resolve(URLEncoder.encode(name, StandardCharsets.UTF_8) + SUFFIX);
+    }
+
+    // Returns the shard responsible for the given name.
+    private Shard shardOf(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException();
+        }
+        int hash = name.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+    }
+
+    // Returns the given number of empty shards.
+    private static Shard[] newShards(int count) {
+        Shard[] shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard();
+        }
+        return shards;
+    }
+
+    /**
+     * A claim on a repository that keeps it in memory until the lease is closed.
+     */
+    public static class Lease implements AutoCloseable {
+        private final Shard shard;
+        private final Entry entry;
+        private final Repository repo;
+        private boolean closed;
+
+        private Lease(Shard shard, Entry entry) {
+            this.shard = shard;
+            this.entry = entry;
+            this.repo = entry.repo;
+        }
+
+        /**
+         * Returns the leased repository.
+         * @return The repository.
+         */
+        public Repository getRepository() {
+            return repo;
+        }
+
+        /**
+         * Releases the repository so the registry may write it out. Closing a lease again
+         * has no effect.
+         */
+        public void close() {
+            synchronized (shard) {
+                if (!closed) {
+                    closed = true;
+                    entry.leases--;
+                }
+            }
+        }
+    }
+
+    // The repositories whose names hash to one shard, guarded by the shard's lock.
+    private static class Shard {
+        final Map<String, Entry> entries = new HashMap<>();
+
+        // The loaded repositories, least recently used first
+        final LinkedHashMap<String, Entry> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    // A repository known to the registry, in memory or on disk. Its lock is held while
+    // its file is read or written, and 'repo' is only set under that lock.
+    private static class Entry {
+        final String name;
+        Repository repo;        // The repository, or null while it is only on disk
+        int leases;             // The number of open leases, guarded by the shard's lock
+
+        // What the repository looked like when it was last read or written, to tell
+        // whether it has to be written again. Commits change the head, and everything
+        // else that changes the history changes the rewrite count.
+        long savedRewrites = -1;
+        String savedHead;
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -1,6 +1,13 @@
 import org.junit.jupiter.api.*;
 import static org.junit.jupiter.api.Assertions.*;
 import java.util.*;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class Testing {
     private Repository repo1;
@@ -61,6 +68,620 @@ public class Testing {
                      "Repo2 should be empty after synchronization");
     }
 
+    @Test
+    @DisplayName("Should keep size, timestamps and message bytes correct through every operation.")
+    public void testChainStatistics() throws InterruptedException {
+        assertEquals(-1, repo1.getNewestTimeStamp(), "Empty repo has no newest timestamp");
+        assertEquals(-1, repo1.getOldestTimeStamp(), "Empty repo has no oldest timestamp");
+
+        commitAll(repo1, new String[]{"a", "bb", "ccc"}); // IDs "0", "1", "2"
+        commitAll(repo2, new String[]{"dddd"});           // ID "3"
+        assertEquals(6, repo1.getTotalMessageBytes());
+
+        assertTrue(repo1.drop("0"));
+        assertEquals(2, repo1.getRepoSize());
+        assertEquals(5, repo1.getTotalMessageBytes());
+        String[] oldest = repo1.getHistory(2).split("\n");
+        assertTrue(oldest[1].startsWith("1 "), "Commit 1 should now be the oldest");
+
+        long newest = repo2.getNewestTimeStamp();
+        repo1.synchronize(repo2);
+        assertEquals(3, repo1.getRepoSize());
+        assertEquals(9, repo1.getTotalMessageBytes());
+        assertEquals(newest, repo1.getNewestTimeStamp());
+        assertTrue(repo1.getOldestTimeStamp() < newest);
+        assertEquals(0, repo2.getTotalMessageBytes());
+        assertEquals(-1, repo2.getOldestTimeStamp());
+    }
+
+    @Test
+    @DisplayName("Should page through history and match getHistory() output.")
+    public void testHistoryPages() throws InterruptedException {
+        String[] messages = new String[]{"one", "two", "three", "four", "five"};
+        commitAll(repo1, messages);
+
+        List<String> paged = new ArrayList<>();
+        String token = null;
+        do {
+            Repository.HistoryPage page = repo1.getHistoryPage(token, 2);
+            assertTrue(page.getCommits().size() <= 2, "Page should not exceed page size");
+            for (Repository.Commit commit : page.getCommits()) {
+                paged.add(commit.toString());
+            }
+            token = page.getNextPageToken();
+        } while (token != null);
+
+        assertEquals(repo1.getHistory(5), String.join("\n", paged));
+        assertEquals("2", repo1.historyIterator("2").next().id);
+        assertEquals(5, repo1.streamHistory().count());
+        assertThrows(IllegalArgumentException.class, () -> repo1.getHistoryPage("42", 2));
+
+        // A page resumed where the last one stopped must not outlive a drop
+        String first = repo1.getHistoryPage(null, 2).getNextPageToken();
+        String last = repo1.getHistoryPage(first, 2).getNextPageToken();
+        assertTrue(repo1.drop("0"));
+        assertThrows(IllegalArgumentException.class, () -> repo1.getHistoryPage(last, 2));
+
+        // The time index finds tokens without a walk and gives the same pages
+        List<Repository.Commit> walked = repo1.getHistoryPage(first, 2).getCommits();
+        repo1.enableTimeIndex();
+        assertEquals(walked, repo1.getHistoryPage(first, 2).getCommits());
+        assertNull(repo1.getHistoryPage(first, 2).getNextPageToken());
+    }
+
+    @Test
+    @DisplayName("Should restore a persistent repository's history and IDs after reopening.")
+    public void testPersistentReopen(@TempDir Path dir) throws IOException, InterruptedException {
+        Repository persistent = Repository.open("persistent", dir);
+        commitAll(persistent, new String[]{"one", "two", "three"}); // IDs "0", "1", "2"
+        commitAll(repo2, new String[]{"four"});                     // ID "3"
+        assertTrue(persistent.drop("1"));
+        persistent.synchronize(repo2);
+        String history = persistent.getHistory(10);
+        persistent.close();
+
+        Repository.Commit.resetIds();
+        Repository reopened = Repository.open("persistent", dir);
+        // The log's summary answers these, and takes the commit, before any replay
+        assertEquals(3, reopened.getRepoSize());
+        assertEquals("3", reopened.getRepoHead());
+        assertEquals("4", reopened.commit("five"), "IDs should continue after the log");
+        assertEquals(4, reopened.getRepoSize());
+        assertEquals("4", reopened.getRepoHead());
+        assertEquals(history, reopened.getHistory(10).split("\n", 2)[1]);
+        assertEquals(4, reopened.getRepoSize());
+
+        // Every commit reaches the file before commit returns, even if the log is never closed
+        Repository crashed = Repository.open("crashed", dir.resolve("crashed"));
+        commitAll(crashed, new String[]{"six", "seven"});
+        Repository recovered = Repository.open("crashed", dir.resolve("crashed"));
+        assertEquals(2, recovered.getRepoSize());
+        assertEquals(crashed.getHistory(10), recovered.getHistory(10));
+        recovered.close();
+        crashed.close();
+        reopened.close();
+    }
+
+    @Test
+    @DisplayName("Should keep dropped commits that came back after reopening.")
+    public void testPersistentReintroduced(@TempDir Path dir)
+            throws IOException, InterruptedException {
+        Repository persistent = Repository.open("persistent", dir.resolve("log"));
+        commitAll(persistent, new String[]{"one", "two"});          // IDs "0", "1"
+        Path file = dir.resolve("export.bin");
+        persistent.exportHistory(file);
+        assertTrue(persistent.drop("0"));
+        persistent.importHistory(file);
+
+        Repository branch = persistent.branch("branch");
+        assertTrue(persistent.drop("1"));
+        persistent.synchronize(branch);
+        String history = persistent.getHistory(10);
+        persistent.close();
+
+        Repository reopened = Repository.open("persistent", dir.resolve("log"));
+        assertEquals(history, reopened.getHistory(10));
+        assertTrue(reopened.contains("0"));
+        assertTrue(reopened.contains("1"));
+        assertEquals(2, reopened.getRepoSize());
+        reopened.close();
+    }
+
+    @Test
+    @DisplayName("Should not lose commits or reuse IDs when committing from many threads.")
+    public void testConcurrentCommits() throws InterruptedException {
+        Repository shared = Repository.concurrent("shared");
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    String id = shared.commit("work");
+                    if (j % 10 == 0) {
+                        shared.drop(id);
+                    }
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        Set<String> ids = new HashSet<>();
+        shared.historyIterator().forEachRemaining(commit -> ids.add(commit.id));
+        assertEquals(3600, shared.getRepoSize());
+        assertEquals(3600, ids.size(), "Every commit should have a unique ID");
+
+        // Switching to tombstone mode while a writer is busy must not miss its commits
+        Repository marked = Repository.concurrent("marked");
+        Thread writer = new Thread(() -> {
+            for (int j = 0; j < 20000; j++) {
+                marked.commit("work");
+            }
+        });
+        writer.start();
+        while (marked.getRepoSize() < 1000) {
+            Thread.onSpinWait();
+        }
+        marked.enableTombstones();
+        writer.join();
+        List<String> all = new ArrayList<>();
+        marked.historyIterator().forEachRemaining(commit -> all.add(commit.id));
+        assertEquals(20000, marked.dropAll(all));
+        assertEquals(0, marked.getRepoSize());
+    }
+
+    @Test
+    @DisplayName("Should merge many repositories at once in timestamp order and empty them.")
+    public void testSynchronizeAll() throws InterruptedException {
+        Repository repo3 = new Repository("repo3");
+        commitAll(repo1, new String[]{"one"});     // ID "0"
+        commitAll(repo2, new String[]{"two"});     // ID "1"
+        commitAll(repo3, new String[]{"three"});   // ID "2"
+        commitAll(repo1, new String[]{"four"});    // ID "3"
+        commitAll(repo3, new String[]{"five"});    // ID "4"
+
+        repo1.synchronizeAll(List.of(repo2, repo3));
+
+        assertEquals(5, repo1.getRepoSize());
+        assertEquals(0, repo2.getRepoSize());
+        assertEquals(0, repo3.getRepoSize());
+        testHistory(repo1, 5, new String[]{"one", "two", "three", "four", "five"});
+        assertThrows(IllegalArgumentException.class, () -> repo1.synchronizeAll(List.of(repo1)));
+    }
+
+    @Test
+    @DisplayName("Should answer time range queries through drops and synchronization.")
+    public void testTimeIndex() throws InterruptedException {
+        repo1.enableTimeIndex();
+        commitAll(repo1, new String[]{"one", "two"});     // IDs "0", "1"
+        commitAll(repo2, new String[]{"three"});          // ID "2"
+        commitAll(repo1, new String[]{"four"});           // ID "3"
+        repo1.synchronize(repo2);
+        assertTrue(repo1.drop("1"));
+
+        List<Repository.Commit> all = repo1.getCommitsBetween(0, Long.MAX_VALUE);
+        assertEquals(3, all.size());
+        assertEquals("3", all.get(0).id, "Range results should be newest first");
+        assertEquals("0", all.get(2).id);
+
+        long threeTime = all.get(1).timeStamp;
+        assertEquals("2", all.get(1).id);
+        assertEquals("0", repo1.getLatestBefore(threeTime).id);
+        assertEquals("3", repo1.getEarliestAfter(threeTime).id);
+        assertEquals(1, repo1.getCommitsBetween(threeTime, threeTime + 1).size());
+        assertNull(repo1.getEarliestAfter(repo1.getNewestTimeStamp()));
+
+        // Copy-on-write replaces commits with copies, and the index must return those
+        Repository shared = Repository.concurrent("shared");
+        shared.enableTimeIndex();
+        commitAll(shared, new String[]{"five", "six", "seven"});  // IDs "4", "5", "6"
+        assertTrue(shared.drop("5"));
+        assertEquals("4", shared.getLatestBefore(Long.MAX_VALUE).past.id);
+        Repository other = new Repository("other");
+        commitAll(other, new String[]{"eight"});                  // ID "7"
+        shared.synchronize(other);
+        assertEquals("4", shared.getCommitsBetween(0, Long.MAX_VALUE).get(1).past.id);
+    }
+
+    @Test
+    @DisplayName("Should behave like Repository when using columnar storage.")
+    public void testColumnarRepository() throws InterruptedException {
+        ColumnarRepository columns1 = new ColumnarRepository("columns1");
+        ColumnarRepository columns2 = new ColumnarRepository("columns2");
+        assertEquals("0", columns1.commit("one"));
+        Thread.sleep(2);
+        assertEquals("1", columns2.commit("two"));
+        Thread.sleep(2);
+        assertEquals("2", columns1.commit("three"));
+
+        assertTrue(columns1.drop("0"));
+        assertFalse(columns1.contains("0"));
+        assertEquals(columns1.getNewestTimeStamp(), columns1.getOldestTimeStamp());
+        columns1.synchronize(columns2);
+        assertEquals(columns1.historyIterator("1").next().timeStamp, columns1.getOldestTimeStamp());
+        assertEquals(-1, columns2.getOldestTimeStamp());
+
+        assertEquals(2, columns1.getRepoSize());
+        assertEquals(0, columns2.getRepoSize());
+        assertEquals("2", columns1.getRepoHead());
+        String[] history = columns1.getHistory(5).split("\n");
+        assertTrue(history[0].startsWith("2 at ") && history[0].endsWith(": three"));
+        assertTrue(history[1].startsWith("1 at ") && history[1].endsWith(": two"));
+        assertEquals(8, columns1.getTotalMessageBytes());
+
+        // History can be read the same ways as from Repository
+        CommitRepository<?> shared = columns1;
+        assertEquals("2", shared.historyIterator().next().id);
+        assertEquals("1", shared.historyIterator("1").next().id);
+        assertEquals(2, shared.streamHistory().count());
+        Repository.HistoryPage page = shared.getHistoryPage(null, 1);
+        assertEquals("2", page.getCommits().get(0).id);
+        page = shared.getHistoryPage(page.getNextPageToken(), 1);
+        assertEquals("two", page.getCommits().get(0).getMessage());
+        assertNull(page.getNextPageToken());
+        assertThrows(IllegalArgumentException.class, () -> shared.getHistoryPage("0", 1));
+    }
+
+    @Test
+    @DisplayName("Should find commits by message words through drops and synchronization.")
+    public void testMessageIndex() throws InterruptedException {
+        repo1.enableMessageIndex();
+        commitAll(repo1, new String[]{"Fix parser bug", "Bump version"});  // IDs "0", "1"
+        commitAll(repo2, new String[]{"fix: parser crash"});               // ID "2"
+        commitAll(repo1, new String[]{"Parsing cleanup"});                 // ID "3"
+
+        assertEquals(List.of("0"), repo1.searchMessages("FIX"));
+        repo1.synchronize(repo2);
+        assertEquals(List.of("2", "0"), repo1.searchMessagesAll("fix", "parser"));
+        assertEquals(List.of("3", "2", "0"), repo1.searchMessagesPrefix("pars"));
+
+        assertTrue(repo1.drop("0"));
+        assertEquals(List.of("2"), repo1.searchMessages("fix"));
+        assertEquals(List.of(), repo1.searchMessagesAll("bump", "fix"));
+        assertTrue(repo1.getMessageIndexBytes() > 0);
+        assertEquals(List.of("1"), repo1.searchMessages("version"));
+    }
+
+    @Test
+    @DisplayName("Should share history between branches without one branch changing another.")
+    public void testBranch() throws InterruptedException {
+        commitAll(repo1, new String[]{"one", "two", "three"});  // IDs "0", "1", "2"
+        Repository branch = repo1.branch("branch");
+        assertEquals(repo1.getHistory(3), branch.getHistory(3));
+
+        commitAll(branch, new String[]{"four"});                // ID "3"
+        assertTrue(branch.drop("1"));
+        assertEquals(3, repo1.getRepoSize());
+        assertTrue(repo1.contains("1"), "Dropping from a branch should not touch the original");
+        assertFalse(repo1.contains("3"));
+
+        // A repository that takes in a branch's commits must not relink them either
+        commitAll(repo2, new String[]{"five"});                 // ID "4"
+        repo2.synchronize(branch);
+        assertTrue(repo2.drop("0"));
+        assertTrue(repo1.contains("0"));
+        assertEquals(0, branch.getRepoSize());
+        testHistory(repo1, 3, new String[]{"one", "two", "three"});
+    }
+
+    @Test
+    @DisplayName("Test synchronize() with shared history")
+    public void testSynchronizeShared() throws InterruptedException {
+        commitAll(repo1, new String[]{"one", "two"});           // IDs "0", "1"
+        Repository branch = repo1.branch("branch");
+        commitAll(repo1, new String[]{"three"});                // ID "2"
+        Thread.sleep(2);
+        commitAll(branch, new String[]{"four", "five"});        // IDs "3", "4"
+
+        // The shared commits "one" and "two" should only show up once
+        repo1.synchronize(branch);
+        assertEquals(5, repo1.getRepoSize());
+        assertEquals(0, branch.getRepoSize());
+        testHistory(repo1, 5, new String[]{"one", "two", "three", "four", "five"});
+        assertTrue(repo1.drop("1"));
+        assertFalse(repo1.contains("1"));
+        assertEquals(4, repo1.getRepoSize());
+
+        // Synchronizing with a branch that has nothing new changes nothing
+        Repository copy = repo1.branch("copy");
+        String history = repo1.getHistory(4);
+        repo1.synchronize(copy);
+        assertEquals(4, repo1.getRepoSize());
+        assertEquals(history, repo1.getHistory(4));
+
+        // A drop on one branch copies the commits in front of it under the same IDs, and
+        // those copies must not be mistaken for the point where the histories split
+        Repository other = repo1.branch("other");
+        assertTrue(other.drop("2"));
+        commitAll(repo1, new String[]{"six"});                  // ID "5"
+        other.synchronize(repo1);
+        assertEquals(5, other.getRepoSize());
+        assertTrue(other.contains("2"), "The other branch still had the dropped commit");
+        String[] merged = other.getHistory(5).split("\n");
+        assertTrue(merged[0].startsWith("5 ") && merged[4].startsWith("0 "));
+
+        // Branches can hold commits from the same millisecond in a different order, and
+        // each commit must still be kept once
+        Repository tied = other.branch("tied");
+        long time = other.getNewestTimeStamp() + 1000;
+        Repository.ReplicatedCommit a = new Repository.ReplicatedCommit("100", time, "a");
+        Repository.ReplicatedCommit x = new Repository.ReplicatedCommit("101", time, "x");
+        other.replicate(List.of(x, a), false);                  // "a" -> "x" -> ...
+        tied.replicate(List.of(a, x), false);                   // "x" -> "a" -> ...
+        other.synchronize(tied);
+        assertEquals(7, other.getRepoSize());
+        Set<String> ids = new HashSet<>();
+        other.historyIterator().forEachRemaining(commit -> assertTrue(ids.add(commit.id)));
+        assertEquals(7, ids.size());
+
+        // Also when this repository's commits run out before a copy is reached
+        List<Repository.ReplicatedCommit> run = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            run.add(new Repository.ReplicatedCommit("" + (200 + i), time, "run"));
+        }
+        Repository left = new Repository("left");
+        Repository right = new Repository("right");
+        left.replicate(run.subList(0, 1), false);
+        right.replicate(run, false);
+        left.synchronize(right);
+        assertEquals(40, left.getRepoSize());
+    }
+
+    @Test
+    @DisplayName("Test dropAll() and dropping in tombstone mode")
+    public void testDropAll() throws InterruptedException {
+        commitAll(repo1, new String[]{"one", "two", "three", "four", "five"}); // IDs "0"-"4"
+        assertEquals(3, repo1.dropAll(List.of("4", "2", "0", "42")));
+        assertEquals(2, repo1.getRepoSize());
+        assertEquals(7, repo1.getTotalMessageBytes());
+        assertEquals("3", repo1.getRepoHead());
+        assertTrue(repo1.getHistory(2).split("\n")[1].startsWith("1 "));
+
+        commitAll(repo2, new String[]{"six", "seven", "eight", "nine"});      // IDs "5"-"8"
+        repo2.enableTombstones();
+        assertTrue(repo2.drop("8"));
+        assertFalse(repo2.drop("8"), "A dead commit cannot be dropped twice");
+        assertEquals(1, repo2.dropAll(List.of("6", "42")));
+        assertEquals(2, repo2.getRepoSize());
+        assertEquals("7", repo2.getRepoHead());
+        assertFalse(repo2.contains("6"));
+        assertEquals(2, repo2.getHistory(5).split("\n").length);
+
+        // Scans without an index skip dead commits as well
+        assertTrue(repo2.searchMessages("nine").isEmpty());
+        assertTrue(repo2.searchMessagesPrefix("se").isEmpty());
+        List<Repository.Commit> live = repo2.getCommitsBetween(0, Long.MAX_VALUE);
+        assertEquals(2, live.size());
+        assertEquals("7", live.get(0).id);
+        assertEquals("7", repo2.getLatestBefore(Long.MAX_VALUE).id);
+        assertEquals("5", repo2.getEarliestAfter(0).id);
+        assertEquals(2, repo2.compact());
+        assertEquals(0, repo2.compact());
+        assertEquals(2, repo2.getRepoSize());
+
+        // Dropping the oldest commit keeps the oldest timestamp exact
+        long oldest = repo2.getNewestTimeStamp();
+        assertTrue(repo2.drop("5"));
+        assertEquals(oldest, repo2.getOldestTimeStamp());
+        repo1.synchronize(repo2);
+        assertEquals(3, repo1.getRepoSize());
+    }
+
+    @Test
+    @DisplayName("Should mirror a repository to a follower and resume after reconnecting.")
+    public void testReplication() throws IOException, InterruptedException {
+        Repository primary = Repository.concurrent("primary");
+        commitAll(primary, new String[]{"one", "two", "three"});   // IDs "0", "1", "2"
+        ReplicationLeader leader = ReplicationLeader.start(primary, 0, 2, 1);
+        ReplicationFollower follower = ReplicationFollower.connect(repo2, leader.getAddress());
+        awaitReplica(primary, repo2);
+
+        commitAll(primary, new String[]{"four"});                  // ID "3"
+        awaitReplica(primary, repo2);
+        assertEquals(4, follower.getReceivedCommits(), "Only the new commit should be sent");
+
+        assertTrue(primary.drop("1"));
+        awaitReplica(primary, repo2);
+        assertFalse(repo2.contains("1"));
+
+        follower.close();
+        commitAll(primary, new String[]{"five"});                  // ID "4"
+        ReplicationFollower resumed = follower.reconnect();
+        awaitReplica(primary, repo2);
+        assertEquals(1, resumed.getReceivedCommits(), "Only the missed commit should be sent");
+        resumed.close();
+        leader.close();
+    }
+
+    @Test
+    @DisplayName("Should export a repository and import it back with the same commits.")
+    public void testExportImport(@TempDir Path dir) throws IOException, InterruptedException {
+        commitAll(repo1, new String[]{"one", "two", "three"});     // IDs "0", "1", "2"
+        repo1.commit(null);                                        // ID "3"
+        Path file = dir.resolve("export.bin");
+        repo1.exportHistory(file);
+
+        Repository.Commit.resetIds();
+        repo2.importHistory(file);
+        assertEquals(repo1.getHistory(4), repo2.getHistory(4));
+        assertEquals(repo1.getTotalMessageBytes(), repo2.getTotalMessageBytes());
+        assertEquals(repo1.getOldestTimeStamp(), repo2.getOldestTimeStamp());
+        assertEquals("4", repo2.commit("four"), "IDs should continue after the import");
+
+        // Importing the same commits again leaves nothing to add
+        repo2.importHistory(file);
+        assertEquals(5, repo2.getRepoSize());
+        assertThrows(IOException.class, () -> repo2.importHistory(dir.resolve("missing.bin")));
+    }
+
+    @Test
+    @DisplayName("Should count operations and the commits they walk over.")
+    public void testMetrics() throws Exception {
+        RepositoryMetrics metrics = new RepositoryMetrics();
+        repo1.setMetricsSink(metrics);
+        commitAll(repo1, new String[]{"one", "two", "three", "four"});  // IDs "0"-"3"
+        assertTrue(repo1.contains("0"));
+        assertFalse(repo1.drop("42"));
+        repo1.getHistory(2);
+        commitAll(repo2, new String[]{"five"});                         // ID "4"
+        repo1.synchronize(repo2);
+
+        assertEquals(4, metrics.getCount(MetricsSink.Operation.COMMIT));
+        assertEquals(4, metrics.getNodesVisited(MetricsSink.Operation.CONTAINS));
+        assertEquals(4, metrics.getNodesVisited(MetricsSink.Operation.DROP));
+        assertEquals(2, metrics.getNodesVisited(MetricsSink.Operation.HISTORY));
+        assertEquals(1, metrics.getCount(MetricsSink.Operation.SYNCHRONIZE));
+        assertTrue(metrics.getLatencyPercentile(MetricsSink.Operation.COMMIT, 99) > 0);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = metrics.register("testMetrics");
+        assertNotNull(server.getAttribute(name, "Counts"));
+        server.unregisterMBean(name);
+
+        // Bulk drops and merges are recorded too
+        assertEquals(2, repo1.dropAll(List.of("1", "2")));
+        assertEquals(2, metrics.getCount(MetricsSink.Operation.DROP));
+        Repository repo3 = new Repository("repo3");
+        repo3.commit("seven");
+        repo1.synchronizeAll(List.of(repo3));
+        assertEquals(2, metrics.getCount(MetricsSink.Operation.SYNCHRONIZE));
+
+        repo1.setMetricsSink(null);
+        repo1.commit("six");
+        assertEquals(4, metrics.getCount(MetricsSink.Operation.COMMIT));
+    }
+
+    @Test
+    @DisplayName("Test snapshot()")
+    public void testSnapshot() throws InterruptedException {
+        String[] commitMessages = new String[]{"one", "two", "three", "four"};
+        commitAll(repo1, commitMessages);                               // IDs "0"-"3"
+        Repository.Snapshot snapshot = repo1.snapshot();
+        String before = repo1.getHistory(10);
+
+        // Readers on another thread keep seeing the pinned version while it is rewritten
+        AtomicBoolean consistent = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            for (int i = 0; i < 10000; i++) {
+                if (!snapshot.getHistory(10).equals(before) || snapshot.getRepoSize() != 4) {
+                    consistent.set(false);
+                }
+            }
+        });
+        reader.start();
+        assertTrue(repo1.drop("1"));
+        commitAll(repo2, new String[]{"five"});                         // ID "4"
+        repo1.synchronize(repo2);
+        repo1.enableTombstones();
+        assertTrue(repo1.drop("2"));
+        reader.join();
+
+        assertTrue(consistent.get());
+        assertTrue(snapshot.contains("1"));
+        assertTrue(snapshot.contains("2"));
+        assertEquals("3", snapshot.getRepoHead());
+        assertEquals(before, snapshot.getHistory(10));
+        assertFalse(repo1.contains("1"));
+        assertEquals(3, repo1.getRepoSize());
+
+        // A snapshot taken in tombstone mode hides the commits dead at that point
+        try (Repository.Snapshot later = repo1.snapshot()) {
+            assertFalse(later.contains("2"));
+            assertEquals(3, later.getRepoSize());
+            repo1.compact();
+            assertTrue(repo1.drop("3"));
+            assertTrue(later.contains("3"));
+            assertEquals(3, later.getRepoSize());
+        }
+        snapshot.close();
+        snapshot.close();
+    }
+
+    @Test
+    @DisplayName("Test enableMessageStore()")
+    public void testMessageStore() throws InterruptedException {
+        repo1.enableMessageStore();
+        String[] commitMessages = new String[MessageStore.BLOCK_BYTES / 5];
+        for (int i = 0; i < commitMessages.length; i++) {
+            commitMessages[i] = (i % 2 == 0) ? "bump" : "fix number " + i;
+        }
+        for (String message : commitMessages) {
+            repo1.commit(message);
+        }
+        Thread.sleep(2);
+        commitAll(repo2, new String[]{"merge", null});
+
+        // Enough text to fill and compress at least one block
+        long total = repo1.getTotalMessageBytes();
+        assertTrue(total > MessageStore.BLOCK_BYTES);
+        assertTrue(repo1.getMessageStoreBytes() < total);
+        assertEquals(0, repo2.getMessageStoreBytes());
+
+        repo1.synchronize(repo2);
+        Iterator<Repository.Commit> history = repo1.historyIterator();
+        assertNull(history.next().getMessage());
+        // Commits made without a store keep their message in the public field
+        assertEquals("merge", history.next().message);
+        for (int i = commitMessages.length - 1; i >= 0; i--) {
+            assertEquals(commitMessages[i], history.next().getMessage());
+        }
+        assertTrue(repo1.drop("0"));
+        assertEquals(total + 5 - "bump".length(), repo1.getTotalMessageBytes());
+    }
+
+    @Test
+    @DisplayName("Test RepositoryRegistry")
+    public void testRegistry(@TempDir Path dir) throws IOException, InterruptedException {
+        String[] commitMessages = new String[]{"one", "two", "three"};
+        try (RepositoryRegistry registry = new RepositoryRegistry(dir, 1)) {
+            assertTrue(registry.create("a"));
+            assertFalse(registry.create("a"));
+            assertTrue(registry.create("b"));
+            // Only one repository fits in memory, so "a" was written out for "b"
+            assertEquals(2, registry.size());
+            assertEquals(1, registry.loadedCount());
+            assertNull(registry.acquire("c"));
+
+            try (RepositoryRegistry.Lease a = registry.acquire("a")) {
+                commitAll(a.getRepository(), commitMessages);
+                // A leased repository stays in memory even past the limit
+                try (RepositoryRegistry.Lease b = registry.acquire("b")) {
+                    assertEquals(2, registry.loadedCount());
+                    b.getRepository().commit("four");
+                }
+            }
+            registry.create("c");
+            assertEquals(1, registry.loadedCount());
+        }
+
+        // Reopening finds every repository without reading any of them yet
+        Repository.Commit.resetIds();
+        try (RepositoryRegistry registry = new RepositoryRegistry(dir, 2)) {
+            assertEquals(3, registry.size());
+            assertEquals(0, registry.loadedCount());
+            try (RepositoryRegistry.Lease a = registry.acquire("a");
+                    RepositoryRegistry.Lease b = registry.acquire("b")) {
+                testHistory(a.getRepository(), 3, commitMessages);
+                assertEquals("four", b.getRepository().getHistory(1).split(": ")[1]);
+                // New commits never reuse IDs from before the registry was reopened, and
+                // writing repositories out never used any up
+                assertEquals("4", a.getRepository().commit("five"));
+            }
+        }
+    }
+
+    // Waits up to five seconds for the replica's history to match the primary's.
+    private void awaitReplica(Repository primary, Repository replica)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!primary.getHistory(100).equals(replica.getHistory(100))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(primary.getHistory(100), replica.getHistory(100));
+    }
+
     /////////////////////////////////////////////////////////////////////////////////
     // PROVIDED HELPER METHODS (You don't have to use these if you don't want to!) //
     /////////////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,213 @@
+import java.util.*;
+
+/**
+ * An index of a repository's commits ordered by timestamp, kept as a sorted array of
+ * timestamps alongside an array of the matching commits. Lookups are binary searches.
+ * New commits almost always have the newest timestamp, so adding one is usually an
+ * append, and merging in another repository's commits only rewrites the part of the
+ * arrays that overlaps them in time.
+ *
+ * Commits with equal timestamps are kept in the reverse of their history order, so
+ * walking the arrays backward visits commits in the same order as the history.
+ */
+class TimeIndex {
+    private long[] timeStamps = new long[16];
+    private Repository.Commit[] commits = new Repository.Commit[16];
+    private int size;
+
+    /**
+     * Adds a commit that was just made on top of the history.
+     * @param commit The new head commit.
+     */
+    synchronized void add(Repository.Commit commit) {
+        ensureCapacity(size + 1);
+        int index = upperBound(commit.timeStamp);
+        System.arraycopy(timeStamps, index, timeStamps, index + 1, size - index);
+        System.arraycopy(commits, index, commits, index + 1, size - index);
+        timeStamps[index] = commit.timeStamp;
+        commits[index] = commit;
+        size++;
+    }
+
+    /**
+     * Removes a commit from the index. Commits are matched by ID, so a copy of an indexed
+     * commit removes the original.
+     * @param commit The commit to remove.
+     */
+    synchronized void remove(Repository.Commit commit) {
+        int i = find(commit);
+        if (i >= 0) {
+            System.arraycopy(timeStamps, i + 1, timeStamps, i, size - i - 1);
+            System.arraycopy(commits, i + 1, commits, i, size - i - 1);
+            commits[--size] = null;
+        }
+    }
+
+    /**
+     * Replaces indexed commits with the copies that copy-on-write put in their place, so
+     * lookups return commits that are still in the history. Copies only ever replace the
+     * front of the history, so the walk stops at the first indexed commit that is still
+     * there. Commits that are not indexed yet are passed over.
+     * @param head The head of the history.
+     */
+    synchronized void refresh(Repository.Commit head) {
+        for (Repository.Commit c = head; c != null; c = c.past) {
+            int i = find(c);
+            if (i >= 0) {
+                if (commits[i] == c) {
+                    return;
+                }
+                commits[i] = c;
+            }
+        }
+    }
+
+    /**
+     * Merges the commits of a chain imported by synchronize into the index. When
+     * timestamps tie, the indexed commits stay ahead of the imported ones in history
+     * order, matching the way synchronize merges chains.
+     * @param added The imported commits, ordered newest first.
+     */
+    synchronized void merge(List<Repository.Commit> added) {
+        int count = added.size();
+        if (count == 0) {
+            return;
+        }
+        Repository.Commit[] imported = new Repository.Commit[count];
+        for (int i = 0; i < count; i++) {
+            imported[count - 1 - i] = added.get(i);
+        }
+
+        // Only the indexed commits at or after the oldest imported commit can move
+        int start = lowerBound(imported[0].timeStamp);
+        int existing = size - start;
+        long[] tailTimes = Arrays.copyOfRange(timeStamps, start, size);
+        Repository.Commit[] tailCommits = Arrays.copyOfRange(commits, start, size);
+
+        ensureCapacity(size + count);
+        int i = 0;
+        int j = 0;
+        int out = start;
+        while (i < count || j < existing) {
+            if (j == existing || (i < count && imported[i].timeStamp <= tailTimes[j])) {
+                timeStamps[out] = imported[i].timeStamp;
+                commits[out++] = imported[i++];
+            } else {
+                timeStamps[out] = tailTimes[j];
+                commits[out++] = tailCommits[j++];
+            }
+        }
+        size += count;
+    }
+
+    /**
+     * Removes every commit from the index.
+     */
+    synchronized void clear() {
+        Arrays.fill(commits, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Returns the commits made at or after 'from' and before 'to', newest first.
+     * @param from The earliest timestamp to include.
+     * @param to The timestamp at which to stop, exclusive.
+     * @return The matching commits.
+     */
+    synchronized List<Repository.Commit> between(long from, long to) {
+        int low = lowerBound(from);
+        int high = lowerBound(to);
+        List<Repository.Commit> result = new ArrayList<>(Math.max(high - low, 0));
+        for (int i = high - 1; i >= low; i--) {
+            result.add(commits[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the newest commit made strictly before the given time.
+     * @param time The time, in milliseconds.
+     * @return The matching commit, or null if there is none.
+     */
+    synchronized Repository.Commit latestBefore(long time) {
+        int index = lowerBound(time) - 1;
+        return (index >= 0) ? commits[index] : null;
+    }
+
+    /**
+     * Returns the oldest commit made strictly after the given time.
+     * @param time The time, in milliseconds.
+     * @return The matching commit, or null if there is none.
+     */
+    synchronized Repository.Commit earliestAfter(long time) {
+        int index = upperBound(time);
+        return (index < size) ? commits[index] : null;
+    }
+
+    /**
+     * Returns the indexed commit with the given ID and timestamp.
+     * @param id The ID of the commit.
+     * @param timeStamp The timestamp of the commit.
+     * @return The matching commit, or null if there is none.
+     */
+    synchronized Repository.Commit get(String id, long timeStamp) {
+        int index = find(id, timeStamp);
+        return (index >= 0) ? commits[index] : null;
+    }
+
+    // Returns the position of the indexed commit with the same ID and timestamp as the
+    // given one, or -1 if there is none.
+    private int find(Repository.Commit commit) {
+        return find(commit.id, commit.timeStamp);
+    }
+
+    // Returns the position of the indexed commit with the given ID and timestamp, or -1
+    // if there is none.
+    private int find(String id, long timeStamp) {
+        for (int i = lowerBound(timeStamp); i < size && timeStamps[i] == timeStamp; i++) {
+            if (commits[i].id.equals(id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the index of the first timestamp that is at least 'time'.
+    private int lowerBound(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timeStamps[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Returns the index of the first timestamp that is greater than 'time'.
+    private int upperBound(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timeStamps[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Grows the arrays so they can hold at least 'capacity' commits.
+    private void ensureCapacity(int capacity) {
+        if (capacity > timeStamps.length) {
+            int newLength = Math.max(capacity, timeStamps.length * 2);
+            timeStamps = Arrays.copyOf(timeStamps, newLength);
+            commits = Arrays.copyOf(commits, newLength);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The bookkeeping behind a repository's tombstone mode. Every commit still in the
+ * repository is kept in a map from its ID, so a drop only has to move the commit from the
+ * live map to the set of dead IDs instead of walking the chain. Dead commits stay linked
+ * into the chain until the repository compacts it.
+ *
+ * The live map is only touched by writers, which hold the repository's lock. The dead set
+ * is also read by lock-free readers skipping over dead commits, so it is a concurrent set.
+ */
+class Tombstones {
+    private final Map<String, Repository.Commit> live = new HashMap<>();
+    private final Set<String> dead = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Records a commit that was added to the repository.
+     * @param commit The new commit.
+     */
+    void add(Repository.Commit commit) {
+        live.put(commit.id, commit);
+    }
+
+    /**
+     * Marks the commit with the given ID as dead.
+     * @param id The ID of the commit to drop.
+     * @return The dropped commit, or null if no live commit has the given ID.
+     */
+    Repository.Commit mark(String id) {
+        Repository.Commit commit = live.remove(id);
+        if (commit != null) {
+            dead.add(id);
+        }
+        return commit;
+    }
+
+    /**
+     * Returns true if the commit with the given ID was dropped but is still linked into
+     * the chain.
+     * @param id The commit ID to check.
+     * @return true if the commit is dead.
+     */
+    boolean isDead(String id) {
+        return !dead.isEmpty() && dead.contains(id);
+    }
+
+    /**
+     * Returns the first commit in the chain starting at 'commit' that is not dead.
+     * @param commit The commit to start at, which may be null.
+     * @return The first live commit, or null if there is none.
+     */
+    Repository.Commit skip(Repository.Commit commit) {
+        while (commit != null && isDead(commit.id)) {
+            commit = commit.past;
+        }
+        return commit;
+    }
+
+    /**
+     * Returns the number of dead commits still linked into the chain.
+     * @return The number of dead commits.
+     */
+    int deadCount() {
+        return dead.size();
+    }
+
+    /**
+     * Returns a copy of the IDs of the dead commits.
+     * @return The dead commit IDs.
+     */
+    Set<String> deadIds() {
+        return new HashSet<>(dead);
+    }
+
+    /**
+     * Forgets dead commits that have been unlinked from the chain.
+     * @param ids The IDs of the unlinked commits.
+     */
+    void forget(Set<String> ids) {
+        dead.removeAll(ids);
+    }
+
+    /**
+     * Forgets every commit, live or dead.
+     */
+    void clear() {
+        live.clear();
+        dead.clear();
+    }
+}
@@ -0,0 +1,53 @@
+import java.util.Iterator;
+import minigit.benchmarks.BenchmarkedRepository;
+
+/**
+ * Lets the benchmarks, which JMH requires to be in a package, use Repository from the
+ * default package. Every call goes straight to the wrapped repository.
+ */
+public class RepositoryAdapter implements BenchmarkedRepository {
+    private final Repository repo;
+
+    /**
+     * Constructs the adapter ServiceLoader uses to create repositories.
+     */
+    public RepositoryAdapter() {
+        this(null);
+    }
+
+    private RepositoryAdapter(Repository repo) {
+        this.repo = repo;
+    }
+
+    public BenchmarkedRepository newRepository(String name) {
+        return new RepositoryAdapter(new Repository(name));
+    }
+
+    public String commit(String message) {
+        return repo.commit(message);
+    }
+
+    public boolean contains(String targetId) {
+        return repo.contains(targetId);
+    }
+
+    public boolean drop(String targetId) {
+        return repo.drop(targetId);
+    }
+
+    public int getRepoSize() {
+        return repo.getRepoSize();
+    }
+
+    public String getHistory(int n) {
+        return repo.getHistory(n);
+    }
+
+    public Iterator<?> historyIterator() {
+        return repo.historyIterator();
+    }
+
+    public void synchronize(BenchmarkedRepository other) {
+        repo.synchronize(((RepositoryAdapter) other).repo);
+    }
+}
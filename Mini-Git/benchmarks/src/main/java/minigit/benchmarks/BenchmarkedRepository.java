@@ -0,0 +1,49 @@
+package minigit.benchmarks;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+/**
+ * The Repository operations the benchmarks time. Repository is in the default package,
+ * which classes in a package cannot name, so RepositoryAdapter implements this interface
+ * from the default package and is found through ServiceLoader.
+ */
+public interface BenchmarkedRepository {
+    /**
+     * Creates an empty repository with the given name.
+     * @param name The name of the repository.
+     * @return The new repository.
+     * @throws IllegalStateException If no implementation is on the classpath.
+     */
+    static BenchmarkedRepository create(String name) {
+        BenchmarkedRepository factory = ServiceLoader.load(BenchmarkedRepository.class)
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("No repository to benchmark"));
+        return factory.newRepository(name);
+    }
+
+    /**
+     * Creates another empty repository of the same kind as this one.
+     * @param name The name of the repository.
+     * @return The new repository.
+     */
+    BenchmarkedRepository newRepository(String name);
+
+    String commit(String message);
+
+    boolean contains(String targetId);
+
+    boolean drop(String targetId);
+
+    int getRepoSize();
+
+    String getHistory(int n);
+
+    Iterator<?> historyIterator();
+
+    /**
+     * Merges the other repository's history into this one and empties it.
+     * @param other A repository created by the same implementation.
+     */
+    void synchronize(BenchmarkedRepository other);
+}
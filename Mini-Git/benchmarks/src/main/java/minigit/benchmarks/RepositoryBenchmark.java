@@ -0,0 +1,191 @@
+package minigit.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for the core Repository operations on histories of 10^3 to 10^7 commits.
+ * Lookups and drops are measured at the head, at the tail, and at random commits.
+ *
+ * Running main() adds the GC profiler, so every result also reports the bytes allocated
+ * per operation (gc.alloc.rate.norm), and writes the results as JSON to the file named by
+ * the first argument, "benchmark-results.json" by default. Keep that file to compare
+ * against later revisions.
+ *
+ * JMH does not accept benchmarks in the default package, and a class in a package cannot
+ * name the Mini-Git classes, so the benchmarks reach Repository through
+ * BenchmarkedRepository. The extra call is to a single implementation, which the JIT
+ * inlines.
+ *
+ * The benchmarks build with the pom.xml above this source folder, which compiles the
+ * Mini-Git sources together with these classes and runs the JMH annotation processor:
+ *      mvn package
+ *      java -Dbenchmark.heap=8g -jar target/benchmarks.jar
+ * The histories of 10^7 commits need a heap of several gigabytes. The benchmark.heap
+ * property sets the heap of the forked benchmark JVMs; without it they get the JVM's
+ * default heap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepositoryBenchmark {
+    // The number of drops timed per iteration of the drop benchmark
+    private static final int DROPS_PER_ITERATION = 1000;
+
+    // A repository of 'size' commits, rebuilt for every iteration since some benchmarks
+    // change it. ids[0] is the oldest commit and ids[size - 1] the head.
+    @State(Scope.Thread)
+    public static class History {
+        @Param({"1000", "10000", "100000", "1000000", "10000000"})
+        public int size;
+
+        BenchmarkedRepository repo;
+        String[] ids;
+
+        @Setup(Level.Iteration)
+        public void build() {
+            repo = BenchmarkedRepository.create("benchmark");
+            ids = new String[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = repo.commit("benchmark commit " + i);
+            }
+        }
+    }
+
+    // Where in the history lookups and drops land.
+    @State(Scope.Thread)
+    public static class Target {
+        @Param({"head", "tail", "random"})
+        public String access;
+
+        private final Random random = new Random(42);
+        private int dropped;
+        private int offset;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            dropped = 0;
+            offset = random.nextInt(Integer.MAX_VALUE);
+        }
+
+        // Returns the ID of a commit to look up.
+        String pick(History history) {
+            if (access.equals("head")) {
+                return history.ids[history.size - 1];
+            } else if (access.equals("tail")) {
+                return history.ids[0];
+            }
+            return history.ids[random.nextInt(history.size)];
+        }
+
+        // Returns the ID of a commit that has not been dropped yet in this iteration.
+        String pickDrop(History history) {
+            int n = dropped++;
+            if (access.equals("head")) {
+                return history.ids[history.size - 1 - n];
+            } else if (access.equals("tail")) {
+                return history.ids[n];
+            }
+            // Striding by a prime that does not divide the size spreads the drops without
+            // picking a commit twice
+            return history.ids[(int) ((offset + n * 7919L) % history.size)];
+        }
+    }
+
+    // Two repositories that each hold every other commit of the same stretch of time,
+    // rebuilt for every synchronize.
+    @State(Scope.Thread)
+    public static class Pair {
+        @Param({"1000", "10000", "100000", "1000000", "10000000"})
+        public int size;
+
+        BenchmarkedRepository into;
+        BenchmarkedRepository from;
+
+        @Setup(Level.Invocation)
+        public void build() {
+            into = BenchmarkedRepository.create("into");
+            from = BenchmarkedRepository.create("from");
+            for (int i = 0; i < size; i++) {
+                ((i % 2 == 0) ? into : from).commit("benchmark commit " + i);
+            }
+        }
+    }
+
+    @Benchmark
+    public String commit(History history) {
+        return history.repo.commit("benchmark commit");
+    }
+
+    @Benchmark
+    public boolean contains(History history, Target target) {
+        return history.repo.contains(target.pick(history));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Measurement(iterations = 5, batchSize = DROPS_PER_ITERATION)
+    @Warmup(iterations = 2, batchSize = DROPS_PER_ITERATION)
+    public boolean drop(History history, Target target) {
+        return history.repo.drop(target.pickDrop(history));
+    }
+
+    @Benchmark
+    public int getRepoSize(History history) {
+        return history.repo.getRepoSize();
+    }
+
+    @Benchmark
+    public String getHistory(History history) {
+        return history.repo.getHistory(100);
+    }
+
+    @Benchmark
+    public void historyIterator(History history, Blackhole blackhole) {
+        Iterator<?> commits = history.repo.historyIterator();
+        for (int i = 0; i < 100 && commits.hasNext(); i++) {
+            blackhole.consume(commits.next());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5)
+    @Warmup(iterations = 2)
+    public BenchmarkedRepository synchronize(Pair pair) {
+        pair.into.synchronize(pair.from);
+        return pair.into;
+    }
+
+    /**
+     * Runs every benchmark in this class with the GC profiler and writes the results as
+     * JSON. The heap of the forked JVMs is taken from the benchmark.heap system property,
+     * such as "8g", if it is set.
+     * @param args The results file name, optionally.
+     * @throws RunnerException If JMH fails.
+     */
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+                .include(RepositoryBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result((args.length > 0) ? args[0] : "benchmark-results.json");
+        String heap = System.getProperty("benchmark.heap");
+        if (heap != null) {
+            builder.jvmArgsAppend("-Xms" + heap, "-Xmx" + heap);
+        }
+        new Runner(builder.build()).run();
+    }
+}